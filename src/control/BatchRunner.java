@@ -0,0 +1,228 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.PrintStream;
+
+import model.Karel;
+import model.World;
+
+/**
+ * Runs a saved session against any number of worlds without a user
+ * interface, so that many programs can be graded in one process. The
+ * program is compiled once and reset against each world in turn, and each
+ * run is written as one line of JSON:
+ *
+ * {"world":"maze.kw","status":"FINISHED","x":4,"y":0,"facing":"EAST",
+ *  "beepers":2,"steps":31,"line":-1,"message":"Code has finished running"}
+ *
+ * The status is a Controller.Status; RUNNING means the step limit was
+ * reached first. A world that cannot be read is reported with "error"
+ * instead.
+ *
+ * Usage: java control.BatchRunner [-steps n] [-engine BYTECODE|TREE|JVM]
+ * [-optimize] session [world ...]
+ *
+ * With -optimize the program is run through the Optimizer first, so runs
+ * take fewer steps than they would stepped through in the editor.
+ *
+ * Each world is a file created by World.map, or a saved World or session,
+ * whose original world is used. With no worlds, the session is run against
+ * its own.
+ */
+public class BatchRunner {
+
+	private final Controller controller;
+	private final int maxSteps;
+	
+	/**
+	 * Compile a session's program, ready to be run against worlds.
+	 *
+	 * @param controller the session; its program is compiled, and its current
+	 * world is replaced by each run
+	 * @param maxSteps the most actions a run may take, or 0 for no limit
+	 */
+	public BatchRunner(Controller controller, int maxSteps) {
+		if (maxSteps < 0) {
+			throw new IllegalArgumentException("Cannot limit a run to a negative number of steps.");
+		}
+		this.controller = controller;
+		this.maxSteps = maxSteps;
+		controller.compile();
+	}
+	
+	/**
+	 * Run the program against a world, leaving the world unchanged.
+	 *
+	 * @param name the name to report the world by
+	 * @param world the world to run against
+	 * @return the result, as a line of JSON without its line break
+	 */
+	public String run(String name, World world) {
+		controller.reset(world);
+		Controller.Status status;
+		if (maxSteps == 0) {
+			status = controller.runToCompletion();
+		} else {
+			// a step limit rules out the engines, which only run to the end
+			status = controller.executeN(maxSteps);
+		}
+		Karel karel = controller.getKarel();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"world\":").append(quote(name));
+		sb.append(",\"status\":\"").append(status).append('"');
+		sb.append(",\"x\":").append(karel.getX());
+		sb.append(",\"y\":").append(karel.getY());
+		sb.append(",\"facing\":\"").append(karel.getFacing()).append('"');
+		sb.append(",\"beepers\":").append(controller.getWorld().getBeeperCount());
+		sb.append(",\"steps\":").append(controller.getStepCount());
+		sb.append(",\"line\":").append(controller.getExecutionLine());
+		sb.append(",\"message\":").append(quote(controller.getExecutionMessage()));
+		return sb.append('}').toString();
+	}
+	
+	/**
+	 * Read a world from a file created by World.map, or from a saved World
+	 * or session.
+	 *
+	 * @param file the file to read
+	 * @return the world, or the original world of a session
+	 * @throws IOException if the file cannot be read or holds no world
+	 */
+	public static World readWorld(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (file.length() < 2 || in.readShort() != ObjectStreamConstants.STREAM_MAGIC) {
+				return World.map(file);
+			}
+		} finally {
+			in.close();
+		}
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+		try {
+			Object saved = ois.readObject();
+			if (saved instanceof World) {
+				return (World) saved;
+			}
+			if (saved instanceof Controller) {
+				return ((Controller) saved).originalWorld;
+			}
+			throw new IOException(file + " holds no world.");
+		} catch (ClassNotFoundException e) {
+			throw new IOException(file + " holds no world.");
+		} finally {
+			ois.close();
+		}
+	}
+	
+	/**
+	 * Quote a string for JSON.
+	 */
+	static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':	sb.append("\\\"");
+						break;
+			case '\\':	sb.append("\\\\");
+						break;
+			case '\n':	sb.append("\\n");
+						break;
+			case '\r':	sb.append("\\r");
+						break;
+			case '\t':	sb.append("\\t");
+						break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+				break;
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	private static void usage(PrintStream out) {
+		out.println("Usage: java control.BatchRunner [-steps n] [-engine BYTECODE|TREE|JVM] [-optimize] session [world ...]");
+	}
+	
+	/**
+	 * Run a session against worlds, writing a line of JSON for each. Exits
+	 * with 1 if the session or any world could not be read, and 2 if the
+	 * arguments are wrong.
+	 */
+	public static void main(String[] args) {
+		int maxSteps = 0;
+		Controller.Engine engine = null;
+		boolean optimize = false;
+		int next = 0;
+		try {
+			for (; next < args.length && args[next].startsWith("-"); next++) {
+				if (args[next].equals("-steps") && next + 1 < args.length) {
+					maxSteps = Integer.parseInt(args[++next]);
+				} else if (args[next].equals("-engine") && next + 1 < args.length) {
+					engine = Controller.Engine.valueOf(args[++next].toUpperCase());
+				} else if (args[next].equals("-optimize")) {
+					optimize = true;
+				} else {
+					usage(System.err);
+					System.exit(2);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			usage(System.err);
+			System.exit(2);
+		}
+		if (next == args.length || maxSteps < 0) {
+			usage(System.err);
+			System.exit(2);
+		}
+		
+		File session = new File(args[next++]);
+		Controller controller = Controller.load(session);
+		if (controller == null) {
+			System.err.println("Could not load session " + session);
+			System.exit(1);
+		}
+		if (engine != null) {
+			controller.setEngine(engine);
+		}
+		if (optimize) {
+			controller.setOptimize(true);
+		}
+		BatchRunner runner = new BatchRunner(controller, maxSteps);
+		
+		boolean failed = false;
+		if (next == args.length) {
+			System.out.println(runner.run(session.getPath(), controller.originalWorld));
+		}
+		for (; next < args.length; next++) {
+			World world;
+			try {
+				world = readWorld(new File(args[next]));
+			} catch (IOException e) {
+				System.out.println("{\"world\":" + quote(args[next]) + ",\"error\":" + quote(e.getMessage()) + "}");
+				failed = true;
+				continue;
+			}
+			System.out.println(runner.run(args[next], world));
+		}
+		System.out.flush();
+		System.exit(failed ? 1 : 0);
+	}
+
+}
@@ -0,0 +1,235 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.BasicCode;
+import model.Code;
+import model.CustomCode;
+import model.IfElseCode;
+import model.LoopCode;
+
+/**
+ * Compiler translates the user's Code objects into a packed Program. Each
+ * Compiler produces a single Program, either all at once, or lazily, a few
+ * lines at a time as the program runs.
+ */
+class Compiler {
+
+	/**
+	 * When compiling lazily, compile whole lines until at least this many
+	 * instructions are ready past the one being executed.
+	 */
+	static final int LOOKAHEAD = 256;
+	
+	private final List<Code> codeList;
+	private int nextLine;
+	
+	private long[] code;
+	private int size;
+	
+	// where each compiled custom action starts
+	private final Map<CustomCode, Integer> entries;
+	// custom actions that are called but not compiled yet, and the CALL instructions that use each one
+	private final Map<CustomCode, List<Integer>> calls;
+	private final List<CustomCode> pending;
+	
+	/**
+	 * @param codeList the top-level blocks of the program; a block's index is
+	 * the line number reported while it runs
+	 */
+	Compiler(List<Code> codeList) {
+		if (codeList.size() > Program.MAX_LINE) {
+			throw new IllegalArgumentException("Program has too many lines to compile.");
+		}
+		this.codeList = new ArrayList<Code>(codeList);
+		nextLine = 0;
+		code = new long[16];
+		size = 0;
+		entries = new IdentityHashMap<CustomCode, Integer>();
+		calls = new IdentityHashMap<CustomCode, List<Integer>>();
+		pending = new ArrayList<CustomCode>();
+	}
+	
+	/**
+	 * Compile the whole Karel program. The top-level program ends with HALT,
+	 * and is followed by the custom actions it uses.
+	 * 
+	 * @return the compiled program
+	 */
+	Program compile() {
+		while (nextLine < codeList.size()) {
+			eval(codeList.get(nextLine), nextLine);
+			nextLine++;
+		}
+		emit(Program.HALT, 0, 0);
+		compilePending();
+		return new Program(Arrays.copyOf(code, size), null);
+	}
+	
+	/**
+	 * Start compiling the Karel program lazily. Only the first few lines are
+	 * compiled now; the rest is compiled by Program.extend() when execution
+	 * reaches a COMPILE instruction.
+	 * 
+	 * @return the partly compiled program
+	 */
+	Program compileLazily() {
+		compileMore(0);
+		return new Program(code, this);
+	}
+	
+	/**
+	 * Compile whole lines until at least LOOKAHEAD instructions are ready past
+	 * pc, or the program is complete. The custom actions that these lines use
+	 * for the first time are compiled just after them, behind a jump. Finish
+	 * with COMPILE if lines remain, or HALT if not.
+	 * 
+	 * @param pc the index execution continues at
+	 * @return the code compiled so far; instructions that were already
+	 * compiled are not changed
+	 */
+	long[] compileMore(int pc) {
+		boolean first = true;
+		while (nextLine < codeList.size() && (first || size - pc < LOOKAHEAD)) {
+			eval(codeList.get(nextLine), nextLine);
+			nextLine++;
+			if (!pending.isEmpty()) {
+				int jump = emit(Program.JUMP, 0, 0);
+				compilePending();
+				patch(jump, size);
+			}
+			first = false;
+		}
+		if (isDone()) {
+			emit(Program.HALT, 0, 0);
+			code = Arrays.copyOf(code, size);
+		} else {
+			emit(Program.COMPILE, 0, 0);
+		}
+		return code;
+	}
+	
+	/**
+	 * Determine whether every line of the program has been compiled.
+	 */
+	boolean isDone() {
+		return nextLine == codeList.size();
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Compile each custom action that has been called, but not compiled yet.
+	 * Compiling one may queue more.
+	 */
+	private void compilePending() {
+		for (int i = 0; i < pending.size(); i++) {
+			entries.put(pending.get(i), size);
+			evalAll(pending.get(i).getCodeBody(), 0);
+			emit(Program.RETURN, 0, 0);
+		}
+		for (CustomCode cc : pending) {
+			for (int call : calls.get(cc)) {
+				patch(call, entries.get(cc));
+			}
+		}
+		pending.clear();
+		calls.clear();
+	}
+	
+	/**
+	 * Evaluate a Code object, appending its instructions to the program.
+	 * 
+	 * @param code element to be evaluated
+	 * @param line top-level line number, or 0 inside a custom action (whose
+	 * steps are reported at the line of the outermost call)
+	 */
+	private void eval(Code code, int line) {
+		
+		if (code == null) {
+			throw new NullPointerException("Called eval with a null pointer.");
+		}
+		
+		if (code instanceof BasicCode) {
+			emit(((BasicCode) code).getInstruction().ordinal(), 0, line);
+		} else if (code instanceof IfElseCode) {
+			IfElseCode iec = (IfElseCode) code;
+			
+			// branch instruction comes first
+			int branch = emit(Program.BRANCH_ON_FALSE + iec.getCondition().ordinal(), 0, line);
+			evalAll(iec.getBody1(), line);
+			// if branch1 taken, jump past all of branch2
+			int jump = emit(Program.JUMP, 0, line);
+			patch(branch, size);
+			evalAll(iec.getBody2(), line);
+			patch(jump, size);
+		} else if (code instanceof LoopCode) {
+			LoopCode lc = (LoopCode) code;
+			
+			// a loop that never runs compiles to nothing
+			if (lc.getCounter() > 0) {
+				int entry = emit(Program.LOOP_ENTRY, lc.getCounter(), line);
+				evalAll(lc.getBody(), line);
+				int back = emit(Program.LOOP_BACK, 0, line);
+				patch(back, entry + 1);
+			}
+		} else if (code instanceof CustomCode) {
+			// each custom action is compiled once, however many places call it
+			CustomCode cc = (CustomCode) code;
+			int call = emit(Program.CALL, 0, line);
+			if (entries.containsKey(cc)) {
+				patch(call, entries.get(cc));
+			} else {
+				List<Integer> sites = calls.get(cc);
+				if (sites == null) {
+					sites = new ArrayList<Integer>();
+					calls.put(cc, sites);
+					pending.add(cc);
+				}
+				sites.add(call);
+			}
+		} else {
+			throw new IllegalArgumentException("Unrecognized code type.");
+		}
+	}
+	
+	private void evalAll(List<Code> body, int line) {
+		for (Code code : body) {
+			eval(code, line);
+		}
+	}
+	
+	/**
+	 * Append one instruction to the program.
+	 * 
+	 * @return the index of the new instruction
+	 */
+	private int emit(int opcode, int operand, int line) {
+		if (size == code.length) {
+			code = Arrays.copyOf(code, size * 2);
+		}
+		code[size] = Program.pack(opcode, operand, line);
+		return size++;
+	}
+	
+	/**
+	 * Set the operand of the branch, jump or call at index at, so that it
+	 * continues at index target.
+	 */
+	private void patch(int at, int target) {
+		long instruction = code[at];
+		code[at] = Program.pack(Program.opcode(instruction), target - at - 1,
+				Program.line(instruction));
+	}
+	
+}
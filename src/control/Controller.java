@@ -1,467 +1,801 @@
-/**
- * @mainAuthor Stephen Chung, Isaac Tyan
- */
-
-package control;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import model.BasicCode;
-import model.Code;
-import model.Code.Action;
-import model.Code.Proposition;
-import model.CustomCode;
-import model.IfElseCode;
-import model.KRuntimeException;
-import model.Karel;
-import model.Karel.Facing;
-import model.LoopCode;
-import model.World;
-import model.World.Contents;
-
-/**
- * Controller acts as a communication medium between the code that the user has created for Karel and any
- * user interfaces (textual or graphical). The primary function of Controller is to maintain all state
- * information necessary to run a session (keep track of Karel and World objects and the user's code). It
- * will parse the user's code and issue commands to Karel.
- * 
- * @author Kodename team
- */
-public class Controller implements Serializable {
-
-	private static final long serialVersionUID = 1L;
-
-	final Karel karel;
-	final World originalWorld;
-	World world;
-	Map<String, CustomCode> macros;
-	List<Code> codeList;
-	
-	String executionMessage;
-	int executionLine;
-	
-	// never make these fields available to other classes
-	Deque<Executable> deque;
-	boolean canExecute;
-	
-	/**
-	 * Instantiate a controller, representing a new game / new session.
-	 * 
-	 * @param x number of columns in the world
-	 * @param y number of rows in the world
-	 * @return a new controller
-	 */
-	public Controller(World input) {
-		originalWorld = input;
-		world = originalWorld.cloneWorld();
-		karel = new Karel(world, 0, 0);
-		macros = new HashMap<String, CustomCode>();
-		codeList = new ArrayList<Code>();
-		deque = null;
-		canExecute = false;
-	}
-	
-	/**
-	 * Save this controller to disk.
-	 * 
-	 * @param file the file to write to
-	 * @return true if save succeeded
-	 */
-	public boolean save(File file) {
-		FileOutputStream fos = null;
-		ObjectOutputStream oos = null;
-		
-		try {
-			fos = new FileOutputStream(file);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return false;
-		}
-		
-		try {
-			oos = new ObjectOutputStream(fos);
-			oos.writeObject(this);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		} finally {
-			try { oos.close(); } catch (IOException e) { }
-		}
-		
-		return true;
-	}
-	
-	public World getWorld() {
-		return world;
-	}
-	
-	public Karel getKarel() {
-		return karel;
-	}
-	
-	/**
-	 * Load a controller from disk.
-	 * 
-	 * @param file the file to load from
-	 * @return the controller, or null if an error occurred
-	 */
-	public static Controller load(File file) {
-		
-		
-		FileInputStream fis;
-		ObjectInputStream ois = null;
-		Controller controller = null;
-		
-		try {
-			fis = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		try {
-			ois = new ObjectInputStream(fis);
-			controller = (Controller) ois.readObject();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		} finally {
-			try { ois.close(); } catch (IOException e) { }
-		}
-		
-		return controller;
-	}
-	
-	public static Controller deserialize(String userID)	throws FileNotFoundException, IOException, ClassNotFoundException{ 
-		
-		FileInputStream fileIn = new FileInputStream("data/" + userID +".dat");
-        ObjectInputStream in = new ObjectInputStream(fileIn);
-        Controller user = (Controller)in.readObject();
-        in.close();
-        fileIn.close();
-        return user;
-		
-	}
-	
-	/**
-	 * Change the macro associated with a macro name.
-	 * 
-	 * @param name the name of the macro
-	 * @param cc the macro body
-	 * @return null if no macro of the given name existed, else the previous macro body
-	 * (that has just been replaced)
-	 * @deprecated
-	 */
-	public CustomCode addMacro(String name, CustomCode cc) {
-		if (name == null || cc == null) {
-			throw new IllegalArgumentException("Neither macro name nor body can be null.");
-		}
-		return macros.put(name, cc);
-	}
-	
-	/**
-	 * Determine whether a macro of a given name exists.
-	 * 
-	 * @param name string name of the macro
-	 * @return true iff the macro exists
-	 * @deprecated
-	 */
-	public boolean hasMacro(String name) {
-		return macros.containsKey(name);
-	}
-	
-	/**
-	 * Provide full access to macro map, for the views.
-	 * 
-	 * @return the map of macro names to macro bodies
-	 */
-	public Map<String, CustomCode> getMacroMap(){
-		return this.macros;
-	}
-	
-	/**
-	 * Find a macro by name. Since no UI should ask for a nonexistent macro, this throws
-	 * an exception if that case does occur.
-	 * 
-	 * @param name the name of the macro
-	 * @return the CustomCode object representing the macro
-	 * @throws IllegalArgumentException if no macro of the given name exists
-	 * @deprecated
-	 */
-	public CustomCode getMacro(String name) {
-		if (!macros.containsKey(name)) {
-			throw new IllegalArgumentException("No macro named " + name + " exists.");
-		}
-		return macros.get(name);
-	}
-
-	/**
-	 * Return the user's Karel program.
-	 * 
-	 * @return the list containing all blocks of code in the Karel program
-	 */
-	public List<Code> getCodeList() {
-		return codeList;
-	}
-	
-	/**
-	 * Parses the codeList, populates the queue of BasicCode instructions.
-	 * 
-	 * @modifies the deque, such that it holds a sequence of BasicCode that
-	 * is equivalent to the user's Karel program
-	 */
-	public void compile() {
-		world = originalWorld.cloneWorld();
-		karel.setWorld(world);
-		deque = new LinkedList<Executable>();
-		
-		System.out.println("Begin compile.");
-		for(int i = 0; i < codeList.size(); i++) {
-			Code code = codeList.get(i);
-			if(code != null){
-				System.out.println(code);
-			}
-			deque.addAll(eval(code, i));
-		}
-		System.out.println("End compile.");
-		
-		canExecute = true;
-		//System.out.println("There are " + deque.size() + " Executables.");
-		executionMessage = "";
-		executionLine = -1;
-	}
-	
-	/**
-	 * Evaluate a Code object, transforming into one or more Executables.
-	 * 
-	 * @param code element to be evaluated
-	 * @param line top-level line number
-	 * @return a LinkedList (implementing deque) of Executables
-	 */
-	private LinkedList<Executable> eval(Code code, int line) {
-		
-		if (code == null) {
-			throw new NullPointerException("Called eval with a null pointer.");
-		}
-		
-		// this is the deque that will be returned
-		LinkedList<Executable> list = new LinkedList<Executable>();
-		
-		if (code instanceof BasicCode) {
-			list.add(new Instruction(line, (BasicCode) code));
-		} else if (code instanceof IfElseCode) {
-			IfElseCode iec = (IfElseCode) code;
-			LinkedList<Executable> branch1 = new LinkedList<Executable>();
-			LinkedList<Executable> branch2 = new LinkedList<Executable>();
-			Iterator<Code> iter = iec.getBody1().iterator();
-			
-			while (iter.hasNext()) {
-				branch1.addAll(eval(iter.next(), line));
-			}
-			
-			iter = iec.getBody2().iterator();
-			
-			while (iter.hasNext()) {
-				branch2.addAll(eval(iter.next(), line));
-			}
-			
-			// branch instruction comes first
-			list.add(new BranchOnFalse(line, iec.getCondition(), branch1.size()+1));
-			list.addAll(branch1);
-			// if branch1 taken, jump past all of branch2
-			list.add(new Jump(line, branch2.size()));
-			list.addAll(branch2);
-		} else if (code instanceof LoopCode) {
-			LinkedList<Executable> sublist = new LinkedList<Executable>();
-			LoopCode lc = (LoopCode) code;
-			Iterator<Code> iterator = lc.getBody().iterator();
-			
-			while(iterator.hasNext()) {
-				sublist.addAll(eval(iterator.next(), line));
-			}
-			
-			for(int i = 0; i < lc.getCounter(); i++) {
-				list.addAll(sublist);
-			}
-		} else if (code instanceof CustomCode) {
-			Iterator<Code> iterator = ((CustomCode)code).getCodeBody().iterator();
-			
-			while(iterator.hasNext()) {
-				list.addAll(eval(iterator.next(), line));
-			}
-		} else {
-			throw new IllegalArgumentException("Unrecognized code type.");
-		}
-		return list;
-	}
-	
-	/**
-	 * Execute one atomic instruction in the Karel program.
-	 * 
-	 * @assumes the Karel program has not been modified since the last call to
-	 * parseCode
-	 * @return a message indicating execution successful, or else a message
-	 * indicating where execution failed
-	 * @throws IllegalStateException if the code has not bee parsed
-	 */
-	public boolean execute(){
-		if (deque == null) {
-			throw new IllegalStateException("You must parse the code before executing.");
-		}
-		if (!canExecute) {
-			throw new IllegalStateException("Cannot execute code now. Not compiled, or"
-					+ " execution reached error, or execution reached end.");
-		}
-
-		if(deque.isEmpty()){
-			this.executionMessage = "Code has finished running";
-			canExecute = false;
-			return false;
-		}
-		
-		Executable exe = deque.removeFirst();
-		
-		if(exe instanceof Instruction){
-			Instruction instr = (Instruction)exe;
-			try{
-				callKarel(instr.action);
-			}catch(KRuntimeException kre){
-				this.executionMessage = kre.getMessage();
-				canExecute = false;
-				return false;
-			}catch(RuntimeException re){
-				this.executionMessage = re.getMessage();
-				canExecute = false;
-				return false;
-			}
-			this.executionMessage = _getExecutionMessage(instr.action);
-			this.executionLine = instr.lineNumber;
-			return true;
-		}else if(exe instanceof BranchOnFalse){
-			
-			BranchOnFalse bof = (BranchOnFalse)exe;
-			
-			if(evaluateProposition(bof.prop)){
-				return execute();
-			}else{
-				goToOffset(bof.offset);
-				return execute();	
-				// if bof is false, pop offset and evaluate (offset must pop off Jump)
-			}
-		}else if(exe instanceof Jump){
-			Jump jump = (Jump)exe;
-			goToOffset(jump.offset);
-			return execute();
-		}else{
-			throw new RuntimeException("Unknown object in code");
-		}		
-	}
-	
-	private void goToOffset(int offset){
-		for(int i = 0; i<offset; i++){
-			this.deque.removeFirst();
-		}
-	}
-	
-	private boolean isFacing(Proposition prop){
-		
-		switch(prop){
-			case IS_FACING_NORTH:	return karel.getFacing() == Facing.NORTH;
-			case IS_FACING_SOUTH:	return karel.getFacing() == Facing.SOUTH;
-			case IS_FACING_EAST:	return karel.getFacing() == Facing.EAST;
-			case IS_FACING_WEST:	return karel.getFacing() == Facing.WEST;
-			default: throw new RuntimeException("For this proposition, should not have called isFacing().");
-		}
-	}
-	
-	private boolean evaluateProposition(Proposition prop){
-		
-		switch(prop){
-			
-			case IS_FRONT_CLEAR:	return karel.isFrontClear();
-			case IS_LEFT_CLEAR:		return karel.isLeftClear();
-			case IS_RIGHT_CLEAR:	return karel.isRightClear();
-			case IS_FACING_NORTH:
-			case IS_FACING_SOUTH:
-			case IS_FACING_EAST:
-			case IS_FACING_WEST:	return isFacing(prop);			
-			case NEXT_TO_BEEPER:	return world.getContents(karel.getX(), karel.getY()) == Contents.BEEPER;
-		
-		}
-		throw new IllegalArgumentException("Unknown proposition used");
-	}
-	
-	private String _getExecutionMessage(Action a){
-		
-		String msg;
-		
-		switch(a){
-		
-			case MOVE:			msg = "Karel moved";
-								break;
-			case TURN_LEFT:		msg = "Karel turned left";
-								break;
-			case TURN_RIGHT:	msg = "Karel turned right";
-								break;
-			case PICK_UP:		msg = "Karel picked up a beeper";
-								break;
-			case PUT_DOWN:		msg = "Karel put down a beeper";
-								break;
-			default:			msg = "ERROR: could not execute";
-								break;		
-		}
-		
-		return msg;
-	}
-	
-	/**
-	 * Calls Karel to act on the given instruction
-	 * @param s the executable instruction
-	 */
-	private void callKarel(Code.Action action){
-		switch(action) {
-		case MOVE:
-			karel.move();
-			break;
-		case PICK_UP:
-			karel.pickUp();
-			break;
-		case PUT_DOWN:
-			karel.putDown();
-			break;
-		case TURN_LEFT:
-			karel.turnLeft();
-			break;
-		case TURN_RIGHT:
-			karel.turnRight();
-			break;
-		default:
-			throw new RuntimeException("Controller cannot execute this unknown action: " + action);
-		}
-	}
-	
-	public String getExecutionMessage(){
-		return executionMessage;
-	}
-	
-	public int getExecutionLine() {
-		return executionLine;
-	}
-}
-
+/**
+ * @mainAuthor Stephen Chung, Isaac Tyan
+ */
+
+package control;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import model.Code;
+import model.Code.Action;
+import model.Code.Proposition;
+import model.CustomCode;
+import model.Karel;
+import model.Karel.Facing;
+import model.World;
+
+/**
+ * Controller acts as a communication medium between the code that the user has created for Karel and any
+ * user interfaces (textual or graphical). The primary function of Controller is to maintain all state
+ * information necessary to run a session (keep track of Karel and World objects and the user's code). It
+ * will parse the user's code and issue commands to Karel.
+ * 
+ * @author Kodename team
+ */
+public class Controller implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The outcome of a batch of execution.
+	 */
+	public enum Status { RUNNING, FINISHED, FAILED }
+	
+	/**
+	 * The ways a compiled program can be run to completion. BYTECODE runs the
+	 * packed Program; TREE runs a TreeProgram compiled from the same code; JVM
+	 * runs the code compiled into a class of its own, or the packed Program if
+	 * it cannot be compiled that way. Stepping always uses the Program.
+	 */
+	public enum Engine { BYTECODE, TREE, JVM }
+	
+	private static final Action[] ACTIONS = Action.values();
+	private static final Proposition[] PROPOSITIONS = Proposition.values();
+
+	final Karel karel;
+	final World originalWorld;
+	World world;
+	Map<String, CustomCode> macros;
+	List<Code> codeList;
+	
+	String executionMessage;
+	int executionLine;
+	long stepCount;
+	boolean optimize;
+	// a choice for this run of the editor, not part of the session, so a
+	// loaded session always compiles in full
+	transient boolean lazy;
+	Engine engine;
+	
+	// never make these fields available to other classes
+	// compiled code is not saved with a session; it must be compiled again after loading
+	transient Program program;
+	transient Runner runner;
+	transient int pc;
+	transient int[] loopCounters;
+	transient int loopDepth;
+	transient int[] returnStack;
+	transient int returnDepth;
+	transient boolean canExecute;
+	transient int failureCode;
+	// whether executeN stops before anything that reads or changes beepers,
+	// as robots sharing a world must
+	transient boolean parkOnBeepers;
+	
+	/**
+	 * Instantiate a controller, representing a new game / new session.
+	 * 
+	 * @param x number of columns in the world
+	 * @param y number of rows in the world
+	 * @return a new controller
+	 */
+	public Controller(World input) {
+		originalWorld = input;
+		world = originalWorld.snapshot();
+		karel = new Karel(world, 0, 0);
+		macros = new HashMap<String, CustomCode>();
+		codeList = new ArrayList<Code>();
+		program = null;
+		canExecute = false;
+	}
+	
+	/**
+	 * Start a run of another controller's compiled program against a world,
+	 * as if it had been compiled and reset here. The compiled code is shared
+	 * rather than copied, so it must have been compiled in full.
+	 * 
+	 * @param compiled the controller whose program to run
+	 * @param input the world to run against; it is not modified
+	 */
+	Controller(Controller compiled, World input) {
+		originalWorld = input;
+		karel = new Karel(input, 0, 0);
+		macros = compiled.macros;
+		codeList = compiled.codeList;
+		optimize = compiled.optimize;
+		lazy = compiled.lazy;
+		engine = compiled.engine;
+		program = compiled.program;
+		runner = compiled.runner;
+		reset();
+	}
+	
+	/**
+	 * Start a run of another controller's compiled program for a robot in a
+	 * world it shares with others. The world is used as it is, not copied,
+	 * and the robot keeps its position.
+	 * 
+	 * @param compiled the controller whose program to run
+	 * @param shared the world the robot is in
+	 * @param robot the robot to run the program
+	 */
+	Controller(Controller compiled, World shared, Karel robot) {
+		originalWorld = shared;
+		world = shared;
+		karel = robot;
+		macros = compiled.macros;
+		codeList = compiled.codeList;
+		optimize = compiled.optimize;
+		lazy = compiled.lazy;
+		engine = compiled.engine;
+		program = compiled.program;
+		restart();
+	}
+	
+	/**
+	 * Save this controller to disk.
+	 * 
+	 * @param file the file to write to
+	 * @return true if save succeeded
+	 */
+	public boolean save(File file) {
+		FileOutputStream fos = null;
+		ObjectOutputStream oos = null;
+		
+		try {
+			fos = new FileOutputStream(file);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		try {
+			oos = new ObjectOutputStream(fos);
+			oos.writeObject(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			try { oos.close(); } catch (IOException e) { }
+		}
+		
+		return true;
+	}
+	
+	public World getWorld() {
+		return world;
+	}
+	
+	public Karel getKarel() {
+		return karel;
+	}
+	
+	/**
+	 * Load a controller from disk.
+	 * 
+	 * @param file the file to load from
+	 * @return the controller, or null if an error occurred
+	 */
+	public static Controller load(File file) {
+		
+		
+		FileInputStream fis;
+		ObjectInputStream ois = null;
+		Controller controller = null;
+		
+		try {
+			fis = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		try {
+			ois = new ObjectInputStream(fis);
+			controller = (Controller) ois.readObject();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			try { ois.close(); } catch (IOException e) { }
+		}
+		
+		return controller;
+	}
+	
+	public static Controller deserialize(String userID)	throws FileNotFoundException, IOException, ClassNotFoundException{ 
+		
+		FileInputStream fileIn = new FileInputStream("data/" + userID +".dat");
+        ObjectInputStream in = new ObjectInputStream(fileIn);
+        Controller user = (Controller)in.readObject();
+        in.close();
+        fileIn.close();
+        return user;
+		
+	}
+	
+	/**
+	 * Change the macro associated with a macro name.
+	 * 
+	 * @param name the name of the macro
+	 * @param cc the macro body
+	 * @return null if no macro of the given name existed, else the previous macro body
+	 * (that has just been replaced)
+	 * @deprecated
+	 */
+	public CustomCode addMacro(String name, CustomCode cc) {
+		if (name == null || cc == null) {
+			throw new IllegalArgumentException("Neither macro name nor body can be null.");
+		}
+		return macros.put(name, cc);
+	}
+	
+	/**
+	 * Determine whether a macro of a given name exists.
+	 * 
+	 * @param name string name of the macro
+	 * @return true iff the macro exists
+	 * @deprecated
+	 */
+	public boolean hasMacro(String name) {
+		return macros.containsKey(name);
+	}
+	
+	/**
+	 * Provide full access to macro map, for the views.
+	 * 
+	 * @return the map of macro names to macro bodies
+	 */
+	public Map<String, CustomCode> getMacroMap(){
+		return this.macros;
+	}
+	
+	/**
+	 * Find a macro by name. Since no UI should ask for a nonexistent macro, this throws
+	 * an exception if that case does occur.
+	 * 
+	 * @param name the name of the macro
+	 * @return the CustomCode object representing the macro
+	 * @throws IllegalArgumentException if no macro of the given name exists
+	 * @deprecated
+	 */
+	public CustomCode getMacro(String name) {
+		if (!macros.containsKey(name)) {
+			throw new IllegalArgumentException("No macro named " + name + " exists.");
+		}
+		return macros.get(name);
+	}
+
+	/**
+	 * Return the user's Karel program.
+	 * 
+	 * @return the list containing all blocks of code in the Karel program
+	 */
+	public List<Code> getCodeList() {
+		return codeList;
+	}
+	
+	/**
+	 * Parses the codeList into a new Program, and resets execution to its first
+	 * instruction.
+	 * 
+	 * @modifies the program, such that it holds a sequence of instructions that
+	 * is equivalent to the user's Karel program
+	 */
+	public void compile() {
+		if (lazy && !optimize) {
+			program = new Compiler(codeList).compileLazily();
+		} else {
+			program = new Compiler(codeList).compile();
+		}
+		if (optimize) {
+			program = Optimizer.peephole(Optimizer.foldFacing(program));
+		}
+		if (optimize) {
+			// the engines run the program as written, so they would count
+			// the steps the Optimizer saved
+			runner = null;
+		} else if (engine == Engine.TREE) {
+			runner = TreeProgram.compile(codeList);
+		} else if (engine == Engine.JVM) {
+			runner = JvmCompiler.compile(codeList);
+		} else {
+			runner = null;
+		}
+		reset();
+	}
+	
+	/**
+	 * Restart the compiled program from its first instruction, against a fresh
+	 * snapshot of the original world. The program is not compiled again.
+	 * 
+	 * @throws IllegalStateException if the code has not been compiled
+	 */
+	public void reset() {
+		reset(originalWorld);
+	}
+	
+	/**
+	 * Restart the compiled program from its first instruction, against a fresh
+	 * snapshot of the given world. The program is not compiled again.
+	 * 
+	 * @param input the world to run the program against; it is not modified
+	 * @throws IllegalStateException if the code has not been compiled
+	 */
+	public void reset(World input) {
+		if (program == null) {
+			throw new IllegalStateException("You must parse the code before executing.");
+		}
+		world = input.snapshot();
+		karel.setWorld(world);
+		restart();
+	}
+	
+	private void restart() {
+		pc = 0;
+		loopCounters = new int[8];
+		loopDepth = 0;
+		returnStack = new int[8];
+		returnDepth = 0;
+		
+		canExecute = true;
+		executionMessage = "";
+		executionLine = -1;
+		stepCount = 0;
+		failureCode = Karel.OK;
+	}
+	
+	/**
+	 * Choose whether compile() runs the Optimizer over the program. Optimized
+	 * programs take fewer steps, so this suits runs that are not stepped through
+	 * by a user. An optimized program is always run as bytecode, whatever the
+	 * Engine.
+	 * 
+	 * @param optimize true to optimize programs from the next compile() on
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+	
+	public boolean isOptimize() {
+		return optimize;
+	}
+	
+	/**
+	 * Choose whether compile() compiles the whole program before it returns,
+	 * or only the first lines, compiling the rest a few lines ahead of
+	 * execution. Lazy compilation lets a large program take its first step
+	 * right away. It does not apply to optimized programs, which are always
+	 * compiled in full. The choice is not saved with the session.
+	 * 
+	 * @param lazy true to compile lazily from the next compile() on
+	 */
+	public void setLazyCompile(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
+	public boolean isLazyCompile() {
+		return lazy;
+	}
+	
+	/**
+	 * Choose how runToCompletion() runs programs from the next compile() on.
+	 * All engines produce identical results. Optimized programs are always
+	 * run as bytecode.
+	 * 
+	 * @param engine the engine to use
+	 */
+	public void setEngine(Engine engine) {
+		if (engine == null) {
+			throw new IllegalArgumentException("Engine cannot be null.");
+		}
+		this.engine = engine;
+	}
+	
+	public Engine getEngine() {
+		return engine == null ? Engine.BYTECODE : engine;
+	}
+	
+	/**
+	 * Return the most recently compiled program.
+	 * 
+	 * @return the compiled program, or null if the code has not been compiled
+	 */
+	public Program getProgram() {
+		return program;
+	}
+	
+	/**
+	 * Execute one atomic instruction in the Karel program.
+	 * 
+	 * @assumes the Karel program has not been modified since the last call to
+	 * parseCode
+	 * @return a message indicating execution successful, or else a message
+	 * indicating where execution failed
+	 * @throws IllegalStateException if the code has not bee parsed
+	 */
+	public boolean execute(){
+		return executeN(1) == Status.RUNNING;
+	}
+	
+	/**
+	 * Run the Karel program until it finishes or fails. A freshly compiled or
+	 * reset program is run with the chosen Engine.
+	 * 
+	 * @return FINISHED if the program ran to its end, or FAILED if Karel could
+	 * not perform one of its actions
+	 * @throws IllegalStateException if the code has not been compiled, or
+	 * execution has already ended
+	 */
+	public Status runToCompletion(){
+		if (runner != null && canExecute && stepCount == 0 && pc == 0) {
+			return runRunner();
+		}
+		Status status;
+		do {
+			status = executeN(Integer.MAX_VALUE);
+		} while (status == Status.RUNNING);
+		return status;
+	}
+	
+	/**
+	 * Run the whole program with the chosen Engine's Runner, leaving this
+	 * controller as if the compiled Program had been run instead.
+	 */
+	private Status runRunner(){
+		Runner.State state = new Runner.State(karel, world);
+		String failure = null;
+		canExecute = false;
+		try {
+			failure = runner.run(state);
+		} finally {
+			stepCount = state.steps;
+			executionLine = state.line;
+			failureCode = state.failure;
+		}
+		if (failure != null) {
+			this.executionMessage = failure;
+			return Status.FAILED;
+		}
+		this.executionMessage = "Code has finished running";
+		return Status.FINISHED;
+	}
+	
+	/**
+	 * Execute up to maxSteps atomic instructions in the Karel program. Branches,
+	 * jumps and loop instructions are not counted as steps. The execution message
+	 * and line afterwards describe the last step taken, as if execute() had
+	 * been called maxSteps times. In an optimized program, a counted move always
+	 * runs to its end, so a batch may take a few more than maxSteps steps.
+	 * 
+	 * @param maxSteps the maximum number of Karel actions to perform
+	 * @return RUNNING if maxSteps actions were performed and the program may
+	 * continue, FINISHED if the program ran to its end, or FAILED if Karel could
+	 * not perform one of its actions
+	 * @throws IllegalStateException if the code has not been compiled, or
+	 * execution has already ended
+	 */
+	public Status executeN(int maxSteps){
+		return executeN(maxSteps, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Execute up to maxSteps atomic instructions, as executeN(int) does, but
+	 * also stop with RUNNING before the program jumps back into a loop or
+	 * calls a custom action more than maxJumps times in all. A program can
+	 * only run for long without taking steps by doing one of those, so this
+	 * bounds the time a batch takes, for callers that must stay responsive.
+	 * 
+	 * @param maxSteps the maximum number of Karel actions to perform
+	 * @param maxJumps the maximum number of loop iterations and calls to make
+	 */
+	Status executeN(int maxSteps, long maxJumps){
+		if (program == null) {
+			throw new IllegalStateException("You must parse the code before executing.");
+		}
+		if (!canExecute) {
+			throw new IllegalStateException("Cannot execute code now. Not compiled, or"
+					+ " execution reached error, or execution reached end.");
+		}
+		if (maxSteps < 0) {
+			throw new IllegalArgumentException("Cannot execute a negative number of steps.");
+		}
+		
+		long[] code = program.code;
+		int last = -1;
+		int steps = 0;
+		
+		long jumps = maxJumps;
+		
+		try {
+			run:
+			while(steps < maxSteps){
+				long instruction = code[pc++];
+				int opcode = Program.opcode(instruction);
+				if(parkOnBeepers && involvesBeepers(opcode)){
+					pc--;
+					break run;
+				}
+				
+				switch(opcode){
+				case Program.MOVE:
+				case Program.TURN_LEFT:
+				case Program.TURN_RIGHT:
+				case Program.PICK_UP:
+				case Program.PUT_DOWN:
+					int result;
+					try{
+						result = callKarel(opcode);
+					}catch(RuntimeException re){
+						return fail(re.getMessage());
+					}
+					if(result != Karel.OK){
+						return fail(result);
+					}
+					last = opcode;
+					this.executionLine = lineOf(code, instruction);
+					steps++;
+					break;
+				case Program.MOVE_N:
+					for(int n = Program.operand(instruction); n > 0; n--){
+						int moved = karel.tryMove();
+						if(moved != Karel.OK){
+							return fail(moved);
+						}
+						last = Program.MOVE;
+						this.executionLine = lineOf(code, instruction);
+						steps++;
+					}
+					break;
+				case Program.JUMP:
+					goToOffset(Program.operand(instruction));
+					break;
+				case Program.LOOP_ENTRY:
+					pushLoopCounter(Program.operand(instruction));
+					break;
+				case Program.LOOP_BACK:
+					if(loopCounters[loopDepth - 1] > 1 && --jumps < 0){
+						pc--;
+						break run;
+					}
+					if(--loopCounters[loopDepth - 1] > 0){
+						goToOffset(Program.operand(instruction));
+					}else{
+						loopDepth--;
+					}
+					break;
+				case Program.CALL:
+					if(--jumps < 0){
+						pc--;
+						break run;
+					}
+					if(returnDepth == Program.MAX_CALL_DEPTH){
+						return fail("Custom actions are nested too deeply.");
+					}
+					pushReturnAddress(pc);
+					goToOffset(Program.operand(instruction));
+					break;
+				case Program.RETURN:
+					pc = returnStack[--returnDepth];
+					break;
+				case Program.COMPILE:
+					code = program.extend(pc);
+					break;
+				case Program.LINE:
+					last = Program.operand(instruction);
+					this.executionLine = lineOf(code, instruction);
+					break;
+				case Program.HALT:
+					pc--;
+					this.executionMessage = "Code has finished running";
+					canExecute = false;
+					return Status.FINISHED;
+				default:
+					// if the proposition is false, skip operand (which must skip the Jump)
+					if(!evaluateProposition(opcode - Program.BRANCH_ON_FALSE)){
+						goToOffset(Program.operand(instruction));
+					}
+					break;
+				}
+			}
+		} finally {
+			stepCount += steps;
+		}
+		if(last != -1){
+			this.executionMessage = _getExecutionMessage(ACTIONS[last]);
+		}
+		return Status.RUNNING;
+	}
+	
+	/**
+	 * Return the number of Karel actions performed since the program was last
+	 * compiled or reset.
+	 * 
+	 * @return the number of successful steps
+	 */
+	public long getStepCount(){
+		return stepCount;
+	}
+	
+	/**
+	 * Return the result code of the action Karel failed to perform, such as
+	 * Karel.BLOCKED, when execution stops on one. Failures are reported
+	 * without building exceptions, so this is cheap to check.
+	 * 
+	 * @return the result of the failed action, or Karel.OK if execution has
+	 * not stopped on a failed action since the last compile or reset
+	 */
+	public int getFailureCode(){
+		return failureCode;
+	}
+	
+	/**
+	 * Return whether execution has stopped before an action or test involving
+	 * beepers, as it does when parked on them.
+	 */
+	boolean atBeeperOperation(){
+		if(!canExecute){
+			return false;
+		}
+		return involvesBeepers(Program.opcode(program.code[pc]));
+	}
+	
+	private static boolean involvesBeepers(int opcode){
+		return opcode == Program.PICK_UP || opcode == Program.PUT_DOWN || opcode == Program.BRANCH_ON_BEEPER;
+	}
+	
+	/**
+	 * Take back the last step, an action that was counted before it could be
+	 * carried out and then failed, and stop with its result.
+	 * 
+	 * @param result the reason the action failed
+	 * @param line the execution line from before the step
+	 */
+	void retract(int result, int line){
+		stepCount--;
+		executionLine = line;
+		fail(result);
+	}
+	
+	private Status fail(String message){
+		this.executionMessage = message;
+		canExecute = false;
+		return Status.FAILED;
+	}
+	
+	private Status fail(int result){
+		failureCode = result;
+		return fail(Karel.failureMessage(result));
+	}
+	
+	/**
+	 * Find the line to report for an action. Steps inside a custom action
+	 * belong to the top-level line that called it.
+	 */
+	private int lineOf(long[] code, long instruction){
+		return returnDepth == 0 ? Program.line(instruction) : Program.line(code[returnStack[0] - 1]);
+	}
+	
+	private void goToOffset(int offset){
+		pc += offset;
+	}
+	
+	private void pushReturnAddress(int address){
+		if(returnDepth == returnStack.length){
+			returnStack = Arrays.copyOf(returnStack, returnDepth * 2);
+		}
+		returnStack[returnDepth++] = address;
+	}
+	
+	private void pushLoopCounter(int counter){
+		if(loopDepth == loopCounters.length){
+			loopCounters = Arrays.copyOf(loopCounters, loopDepth * 2);
+		}
+		loopCounters[loopDepth++] = counter;
+	}
+	
+	private static boolean isFacing(Proposition prop, Karel karel){
+		
+		switch(prop){
+			case IS_FACING_NORTH:	return karel.getFacing() == Facing.NORTH;
+			case IS_FACING_SOUTH:	return karel.getFacing() == Facing.SOUTH;
+			case IS_FACING_EAST:	return karel.getFacing() == Facing.EAST;
+			case IS_FACING_WEST:	return karel.getFacing() == Facing.WEST;
+			default: throw new RuntimeException("For this proposition, should not have called isFacing().");
+		}
+	}
+	
+	private boolean evaluateProposition(int proposition){
+		return evaluateProposition(PROPOSITIONS[proposition], karel, world);
+	}
+	
+	/**
+	 * Evaluate a proposition about a Karel robot in its world.
+	 */
+	static boolean evaluateProposition(Proposition prop, Karel karel, World world){
+		
+		switch(prop){
+			
+			case IS_FRONT_CLEAR:	return karel.isFrontClear();
+			case IS_LEFT_CLEAR:		return karel.isLeftClear();
+			case IS_RIGHT_CLEAR:	return karel.isRightClear();
+			case IS_FACING_NORTH:
+			case IS_FACING_SOUTH:
+			case IS_FACING_EAST:
+			case IS_FACING_WEST:	return isFacing(prop, karel);			
+			case NEXT_TO_BEEPER:	return karel.isNextToBeeper();
+		
+		}
+		throw new IllegalArgumentException("Unknown proposition used");
+	}
+	
+	private String _getExecutionMessage(Action a){
+		
+		String msg;
+		
+		switch(a){
+		
+			case MOVE:			msg = "Karel moved";
+								break;
+			case TURN_LEFT:		msg = "Karel turned left";
+								break;
+			case TURN_RIGHT:	msg = "Karel turned right";
+								break;
+			case PICK_UP:		msg = "Karel picked up a beeper";
+								break;
+			case PUT_DOWN:		msg = "Karel put down a beeper";
+								break;
+			default:			msg = "ERROR: could not execute";
+								break;		
+		}
+		
+		return msg;
+	}
+	
+	/**
+	 * Calls Karel to act on the given instruction
+	 * @param opcode the action's opcode
+	 * @return Karel.OK, or the reason Karel could not act
+	 */
+	private int callKarel(int opcode){
+		switch(opcode) {
+		case Program.MOVE:
+			return karel.tryMove();
+		case Program.PICK_UP:
+			return karel.tryPickUp();
+		case Program.PUT_DOWN:
+			return karel.tryPutDown();
+		case Program.TURN_LEFT:
+			karel.turnLeft();
+			return Karel.OK;
+		case Program.TURN_RIGHT:
+			karel.turnRight();
+			return Karel.OK;
+		default:
+			throw new RuntimeException("Controller cannot execute this unknown action: " + opcode);
+		}
+	}
+	
+	public String getExecutionMessage(){
+		return executionMessage;
+	}
+	
+	public int getExecutionLine() {
+		return executionLine;
+	}
+}
+
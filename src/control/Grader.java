@@ -0,0 +1,386 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import model.Karel;
+import model.Karel.Facing;
+import model.World;
+
+/**
+ * Grades one program against many worlds at once. The program is compiled
+ * once, and the worlds are split among the threads of a ForkJoinPool. Each
+ * run has only what it changes to itself: a snapshot of its world, a Karel,
+ * and a Controller sharing the compiled code, so runs never wait on one
+ * another and grading scales with the number of cores.
+ *
+ * The worlds are only read, but they must not be changed while they are
+ * being graded.
+ */
+public class Grader {
+
+	// the pool shared by graders not given one of their own; its threads are
+	// daemons, so it never keeps a program from exiting
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+	// ranges of at most this many single worlds are graded without splitting them
+	private static final int SPLIT = 4;
+	
+	private final Controller compiled;
+	// the program compiled to run in many worlds at once, or null if it
+	// cannot be
+	private final LaneProgram lanes;
+	private final int maxSteps;
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Compile a session's program for grading, on a pool with a thread for
+	 * each core.
+	 *
+	 * @param session the session whose program to grade; it is compiled in
+	 * full, and must not be changed while grading
+	 * @param maxSteps the most actions a run may take, or 0 for no limit
+	 */
+	public Grader(Controller session, int maxSteps) {
+		this(session, maxSteps, POOL);
+	}
+	
+	/**
+	 * Compile a session's program for grading on the given pool.
+	 *
+	 * @param session the session whose program to grade; it is compiled in
+	 * full, and must not be changed while grading
+	 * @param maxSteps the most actions a run may take, or 0 for no limit
+	 * @param pool the pool to run on
+	 */
+	public Grader(Controller session, int maxSteps, ForkJoinPool pool) {
+		if (maxSteps < 0) {
+			throw new IllegalArgumentException("Cannot limit a run to a negative number of steps.");
+		}
+		if (pool == null) {
+			throw new IllegalArgumentException("Pool cannot be null.");
+		}
+		compileInFull(session);
+		this.compiled = session;
+		// lanes run to completion without optimizing, as the engines do
+		this.lanes = maxSteps == 0 && !session.isOptimize() ? LaneProgram.compile(session.getCodeList()) : null;
+		this.maxSteps = maxSteps;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Compile a session's program so that runs may share it. Runs share the
+	 * compiled code, which a lazily compiled program would change as it ran.
+	 */
+	static void compileInFull(Controller session) {
+		boolean lazy = session.isLazyCompile();
+		session.setLazyCompile(false);
+		try {
+			session.compile();
+		} finally {
+			session.setLazyCompile(lazy);
+		}
+	}
+	
+	/**
+	 * Run the program against every world, in parallel. If the program never
+	 * touches a beeper, worlds of the same size are run together, many at
+	 * once on each thread.
+	 *
+	 * @param worlds the worlds to run against; none is modified
+	 * @return the result of each run, in the order of the worlds, and totals
+	 */
+	public Report grade(List<World> worlds) {
+		World[] all = worlds.toArray(new World[worlds.size()]);
+		Result[] results = new Result[all.length];
+		int[][] groups = group(all);
+		pool.invoke(new Batch(all, results, groups, 0, groups.length));
+		return new Report(results);
+	}
+	
+	/**
+	 * Split worlds into the groups run together: up to LaneProgram.LANES
+	 * worlds of the same size if the program can run in lanes, and otherwise
+	 * one world each. An empty world, which Karel cannot start in, is always
+	 * graded on its own.
+	 * 
+	 * @return the indexes of the worlds in each group
+	 */
+	private int[][] group(World[] worlds) {
+		List<int[]> groups = new ArrayList<int[]>();
+		Map<Long, List<Integer>> filling = new HashMap<Long, List<Integer>>();
+		for (int i = 0; i < worlds.length; i++) {
+			long x = worlds[i].getXSize();
+			long y = worlds[i].getYSize();
+			if (lanes == null || x * y == 0 || x * y > LaneProgram.MAX_CELLS) {
+				groups.add(new int[] { i });
+				continue;
+			}
+			Long size = x << 32 | y;
+			List<Integer> group = filling.get(size);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				filling.put(size, group);
+			}
+			group.add(i);
+			if (group.size() == LaneProgram.LANES) {
+				groups.add(toArray(group));
+				filling.remove(size);
+			}
+		}
+		for (List<Integer> group : filling.values()) {
+			groups.add(toArray(group));
+		}
+		return groups.toArray(new int[groups.size()][]);
+	}
+	
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+	
+	/**
+	 * Run the program against one world, on the calling thread.
+	 *
+	 * @param world the world to run against; it is not modified
+	 * @return the result of the run
+	 */
+	public Result grade(World world) {
+		Controller run;
+		try {
+			run = new Controller(compiled, world);
+		} catch (IllegalArgumentException e) {
+			return cannotStart(world, e);
+		}
+		Controller.Status status;
+		if (maxSteps == 0) {
+			status = run.runToCompletion();
+		} else {
+			status = run.executeN(maxSteps);
+		}
+		return result(run, status);
+	}
+	
+	/**
+	 * Report a run that ended with the given status.
+	 */
+	static Result result(Controller run, Controller.Status status) {
+		Karel karel = run.getKarel();
+		return new Result(status, karel.getX(), karel.getY(), karel.getFacing(), run.getWorld().getBeeperCount(),
+				run.getStepCount(), run.getExecutionLine(), run.getExecutionMessage(), run.getFailureCode());
+	}
+	
+	/**
+	 * Report a world Karel cannot start in as a failed run.
+	 */
+	static Result cannotStart(World world, IllegalArgumentException e) {
+		return new Result(Controller.Status.FAILED, 0, 0, Facing.NORTH, world.getBeeperCount(),
+				0, -1, e.getMessage(), Karel.OK);
+	}
+	
+	/**
+	 * Grades a range of groups of worlds, splitting it in half until it is
+	 * small.
+	 */
+	private final class Batch extends RecursiveAction {
+	
+		private static final long serialVersionUID = 1L;
+		
+		private final World[] worlds;
+		private final Result[] results;
+		private final int[][] groups;
+		private final int from;
+		private final int to;
+		
+		Batch(World[] worlds, Result[] results, int[][] groups, int from, int to) {
+			this.worlds = worlds;
+			this.results = results;
+			this.groups = groups;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from == 1 || to - from <= SPLIT && groups[from].length == 1) {
+				for (int i = from; i < to; i++) {
+					grade(groups[i]);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Batch(worlds, results, groups, from, middle),
+					new Batch(worlds, results, groups, middle, to));
+		}
+		
+		private void grade(int[] group) {
+			if (group.length == 1) {
+				results[group[0]] = Grader.this.grade(worlds[group[0]]);
+				return;
+			}
+			World[] together = new World[group.length];
+			for (int i = 0; i < group.length; i++) {
+				together[i] = worlds[group[i]];
+			}
+			Result[] run = lanes.run(together);
+			for (int i = 0; i < group.length; i++) {
+				results[group[i]] = run[i];
+			}
+		}
+	}
+	
+	/**
+	 * How a run ended, as the Controller that ran it reported.
+	 */
+	public static final class Result {
+	
+		private final Controller.Status status;
+		private final int x;
+		private final int y;
+		private final Facing facing;
+		private final int beeperCount;
+		private final long stepCount;
+		private final int executionLine;
+		private final String executionMessage;
+		private final int failureCode;
+		
+		Result(Controller.Status status, int x, int y, Facing facing, int beeperCount, long stepCount,
+				int executionLine, String executionMessage, int failureCode) {
+			this.status = status;
+			this.x = x;
+			this.y = y;
+			this.facing = facing;
+			this.beeperCount = beeperCount;
+			this.stepCount = stepCount;
+			this.executionLine = executionLine;
+			this.executionMessage = executionMessage;
+			this.failureCode = failureCode;
+		}
+		
+		/**
+		 * @return FINISHED or FAILED, or RUNNING if the step limit was reached
+		 */
+		public Controller.Status getStatus() {
+			return status;
+		}
+		
+		public int getX() {
+			return x;
+		}
+		
+		public int getY() {
+			return y;
+		}
+		
+		public Facing getFacing() {
+			return facing;
+		}
+		
+		/**
+		 * @return the number of beepers left in the world
+		 */
+		public int getBeeperCount() {
+			return beeperCount;
+		}
+		
+		public long getStepCount() {
+			return stepCount;
+		}
+		
+		public int getExecutionLine() {
+			return executionLine;
+		}
+		
+		public String getExecutionMessage() {
+			return executionMessage;
+		}
+		
+		public int getFailureCode() {
+			return failureCode;
+		}
+	}
+	
+	/**
+	 * The results of grading a program against a list of worlds, and their
+	 * totals.
+	 */
+	public static final class Report {
+	
+		private final Result[] results;
+		private final int finished;
+		private final int failed;
+		private final long stepCount;
+		
+		Report(Result[] results) {
+			this.results = results;
+			int finished = 0;
+			int failed = 0;
+			long steps = 0;
+			for (Result result : results) {
+				if (result.status == Controller.Status.FINISHED) {
+					finished++;
+				} else if (result.status == Controller.Status.FAILED) {
+					failed++;
+				}
+				steps += result.stepCount;
+			}
+			this.finished = finished;
+			this.failed = failed;
+			this.stepCount = steps;
+		}
+		
+		/**
+		 * @return the result of each run, in the order of the worlds
+		 */
+		public Result[] getResults() {
+			return results.clone();
+		}
+		
+		public Result getResult(int index) {
+			return results[index];
+		}
+		
+		public int size() {
+			return results.length;
+		}
+		
+		/**
+		 * @return the number of runs that ran to the end of the program
+		 */
+		public int getFinished() {
+			return finished;
+		}
+		
+		/**
+		 * @return the number of runs in which Karel failed an action
+		 */
+		public int getFailed() {
+			return failed;
+		}
+		
+		/**
+		 * @return the number of runs stopped by the step limit
+		 */
+		public int getUnfinished() {
+			return results.length - finished - failed;
+		}
+		
+		/**
+		 * @return the number of actions taken in all the runs
+		 */
+		public long getStepCount() {
+			return stepCount;
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import model.World;
+
+/**
+ * Grades many sessions, each against several worlds, running every
+ * (session, world) job on a thread of its own. Threads are virtual where the
+ * Java runtime has them, so a job costs little more than its Controller, and
+ * how much runs at once is limited by the cores rather than by threads; on
+ * older runtimes jobs share a pool with a thread for each core.
+ *
+ * Jobs run the compiled Program in slices of at most SLICE steps, loop
+ * iterations and calls. Between slices a job checks its step budget, its
+ * deadline and whether it has been cancelled, and then yields, so a program
+ * that runs forever holds up the others for no more than a slice.
+ *
+ * At most a fixed number of jobs are submitted but unfinished at once. Once
+ * that many are, submitting another waits for one to finish, so the memory
+ * taken by waiting jobs stays flat however many sessions there are.
+ */
+public class GradingService {
+
+	// the most steps, and the most loop iterations and calls, in a slice
+	private static final int SLICE = 1 << 14;
+	
+	private final ExecutorService executor;
+	private final Semaphore capacity;
+	private final long stepBudget;
+	private final long deadlineNanos;
+	
+	/**
+	 * Start a grading service.
+	 *
+	 * @param maxPending the most jobs that may be submitted but unfinished
+	 * @param stepBudget the most actions a job may take; a job that takes
+	 * them all ends with status RUNNING
+	 * @param deadline how long a job may run for, from when it starts
+	 * @param unit the unit of the deadline
+	 */
+	public GradingService(int maxPending, long stepBudget, long deadline, TimeUnit unit) {
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("Must allow at least one pending job.");
+		}
+		if (stepBudget <= 0 || deadline <= 0) {
+			throw new IllegalArgumentException("The step budget and deadline must be positive.");
+		}
+		this.executor = newExecutor();
+		this.capacity = new Semaphore(maxPending);
+		this.stepBudget = stepBudget;
+		this.deadlineNanos = unit.toNanos(deadline);
+	}
+	
+	/**
+	 * Create an executor that starts a virtual thread for each task, or a
+	 * pool with a thread for each core before Java 21.
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			Method perTask = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) perTask.invoke(null);
+		} catch (Exception e) {
+			// before Java 21
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+	}
+	
+	/**
+	 * Compile a session's program and grade it against each of the worlds,
+	 * waiting for room for the jobs if too many are pending. The result of
+	 * a job that passes its deadline is a TimeoutException.
+	 *
+	 * @param session the session to grade; it is compiled in full, and must
+	 * not be changed until its jobs are done
+	 * @param worlds the worlds to run against; none is modified
+	 * @return the result of each job, in the order of the worlds
+	 * @throws InterruptedException if interrupted while waiting for room;
+	 * jobs submitted by then are left to run
+	 * @throws RejectedExecutionException if the service has been shut down
+	 */
+	public List<Future<Grader.Result>> submit(Controller session, List<World> worlds) throws InterruptedException {
+		Grader.compileInFull(session);
+		List<Future<Grader.Result>> jobs = new ArrayList<Future<Grader.Result>>(worlds.size());
+		for (World world : worlds) {
+			capacity.acquire();
+			Job job = new Job(session, world);
+			try {
+				executor.execute(job);
+			} catch (RejectedExecutionException e) {
+				capacity.release();
+				throw e;
+			}
+			jobs.add(job);
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Stop accepting jobs. Jobs already submitted still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Stop accepting jobs and cancel those submitted.
+	 */
+	public void shutdownNow() {
+		executor.shutdownNow();
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+	
+	/**
+	 * Run a session's compiled program against a world, slice by slice.
+	 */
+	private Grader.Result grade(Controller compiled, World world) throws InterruptedException, TimeoutException {
+		long start = System.nanoTime();
+		Controller run;
+		try {
+			run = new Controller(compiled, world);
+		} catch (IllegalArgumentException e) {
+			return Grader.cannotStart(world, e);
+		}
+		Controller.Status status = Controller.Status.RUNNING;
+		while (run.getStepCount() < stepBudget) {
+			status = run.executeN((int) Math.min(SLICE, stepBudget - run.getStepCount()), SLICE);
+			if (status != Controller.Status.RUNNING) {
+				break;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (System.nanoTime() - start > deadlineNanos) {
+				throw new TimeoutException("Grading took longer than "
+						+ TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + " ms.");
+			}
+			Thread.yield();
+		}
+		return Grader.result(run, status);
+	}
+	
+	/**
+	 * A (session, world) job, which makes room for another when it is done
+	 * or cancelled.
+	 */
+	private final class Job extends FutureTask<Grader.Result> {
+	
+		Job(final Controller compiled, final World world) {
+			super(new Callable<Grader.Result>() {
+				public Grader.Result call() throws InterruptedException, TimeoutException {
+					return grade(compiled, world);
+				}
+			});
+		}
+		
+		@Override
+		protected void done() {
+			capacity.release();
+		}
+	}
+
+}
@@ -0,0 +1,600 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.BasicCode;
+import model.Code;
+import model.Code.Proposition;
+import model.CustomCode;
+import model.IfElseCode;
+import model.KRuntimeException;
+import model.Karel;
+import model.LoopCode;
+import model.World;
+
+/**
+ * JvmCompiler translates a Karel program into a single JVM method, with real
+ * loops and branches, and loads it as a hidden class (Java 15 or later) that
+ * can be unloaded as soon as it is no longer used. Custom actions are
+ * inlined.
+ *
+ * The steps of each top-level line occupy one range of bytecode. The
+ * exception table maps each range back to its line, so the method does not
+ * keep track of the line it is running until Karel fails.
+ *
+ * Programs that cannot be compiled this way, because they are too large for
+ * one method or use a custom action inside itself, are left to the
+ * interpreter.
+ */
+final class JvmCompiler {
+
+	// keep every branch offset within a signed 16 bit range
+	private static final int MAX_CODE = 32767;
+	private static final int MAX_LOCALS = 256;
+
+	private static final Proposition[] PROPOSITIONS = Proposition.values();
+
+	// local variables of the generated method
+	private static final int STATE = 1;
+	private static final int KAREL = 2;
+	private static final int WORLD = 3;
+	// steps taken, and steps taken before the current line
+	private static final int STEPS = 4;
+	private static final int MARK = 6;
+	// the line of the last step, up to the start of the current line
+	private static final int LINE = 8;
+	private static final int FAILED_LINE = 9;
+	private static final int EXCEPTION = 10;
+	private static final int FIRST_COUNTER = 11;
+
+	private static final String CLASS_NAME = "control/KarelRoutine";
+	private static final String STATE_CLASS = "control/Runner$State";
+	private static final String HELPERS = "control/JvmCompiler";
+
+	private static final Method DEFINE_HIDDEN_CLASS = findDefineHiddenClass();
+	private static final Object NO_OPTIONS = DEFINE_HIDDEN_CLASS == null ? null
+			: Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+
+	private final ConstantPool pool;
+	private byte[] code;
+	private int size;
+	private int maxLocals;
+	// exception table entries: start, end, handler, line
+	private final List<int[]> ranges;
+	// custom actions being inlined
+	private final Map<CustomCode, Boolean> inlining;
+
+	private JvmCompiler() {
+		pool = new ConstantPool();
+		code = new byte[256];
+		size = 0;
+		maxLocals = FIRST_COUNTER;
+		ranges = new ArrayList<int[]>();
+		inlining = new IdentityHashMap<CustomCode, Boolean>();
+	}
+
+	/**
+	 * Compile a Karel program into a hidden class.
+	 *
+	 * @param codeList the top-level blocks of the program
+	 * @return the compiled program, or null if it must be interpreted instead
+	 */
+	static Runner compile(List<Code> codeList) {
+		if (DEFINE_HIDDEN_CLASS == null) {
+			return null;
+		}
+		byte[] bytes;
+		try {
+			bytes = new JvmCompiler().generate(codeList);
+		} catch (Unsupported u) {
+			return null;
+		}
+		try {
+			MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+					MethodHandles.lookup(), bytes, true, NO_OPTIONS);
+			return (Runner) lookup.lookupClass().getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static Method findDefineHiddenClass() {
+		try {
+			Class<?> options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			return MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+					boolean.class, Array.newInstance(options, 0).getClass());
+		} catch (Exception e) {
+			// before Java 15
+			return null;
+		}
+	}
+
+	/**
+	 * Perform one action for the generated code.
+	 *
+	 * @throws Runner.Failure if Karel cannot perform it
+	 */
+	static void act(Runner.State state, int action) {
+		Karel karel = state.karel;
+		int result = Karel.OK;
+		try {
+			switch (action) {
+			case Program.MOVE:
+				result = karel.tryMove();
+				break;
+			case Program.PICK_UP:
+				result = karel.tryPickUp();
+				break;
+			case Program.PUT_DOWN:
+				result = karel.tryPutDown();
+				break;
+			case Program.TURN_LEFT:
+				karel.turnLeft();
+				break;
+			case Program.TURN_RIGHT:
+				karel.turnRight();
+				break;
+			default:
+				throw new KRuntimeException("Cannot execute this unknown action: " + action);
+			}
+		} catch (RuntimeException re) {
+			throw new Runner.Failure(re.getMessage());
+		}
+		if (result != Karel.OK) {
+			state.failure = result;
+			throw new Runner.Failure(Karel.failureMessage(result));
+		}
+	}
+
+	/**
+	 * Evaluate a proposition for the generated code.
+	 */
+	static boolean test(Karel karel, World world, int proposition) {
+		return Controller.evaluateProposition(PROPOSITIONS[proposition], karel, world);
+	}
+
+	/**
+	 * Generate the class file.
+	 */
+	private byte[] generate(List<Code> codeList) {
+		// load the robot and world, and start counting
+		aload(STATE);
+		emit(0xb4, pool.field(STATE_CLASS, "karel", "Lmodel/Karel;"));
+		astore(KAREL);
+		aload(STATE);
+		emit(0xb4, pool.field(STATE_CLASS, "world", "Lmodel/World;"));
+		astore(WORLD);
+		emit1(0x09);									// lconst_0
+		emitLocal(0x37, STEPS);							// lstore
+		emit1(0x09);
+		emitLocal(0x37, MARK);
+		aload(STATE);
+		emit(0xb4, pool.field(STATE_CLASS, "line", "I"));
+		emitLocal(0x36, LINE);							// istore
+
+		for (int i = 0; i < codeList.size(); i++) {
+			if (i > 0) {
+				endLine(i - 1);
+			}
+			int start = size;
+			eval(codeList.get(i), 0);
+			if (size > start) {
+				ranges.add(new int[] { start, size, 0, i });
+			}
+		}
+		if (codeList.size() > 0) {
+			endLine(codeList.size() - 1);
+		}
+		storeProgress();
+		emit1(0x01);									// aconst_null
+		emit1(0xb0);									// areturn
+
+		// one handler per line, each noting its line before joining the rest
+		List<Integer> gotos = new ArrayList<Integer>();
+		for (int[] range : ranges) {
+			range[2] = size;
+			emitLocal(0x3a, EXCEPTION);					// astore
+			pushInt(range[3]);
+			emitLocal(0x36, FAILED_LINE);
+			gotos.add(size);
+			emit(0xa7, 0);								// goto
+		}
+		for (int at : gotos) {
+			patch(at, size);
+		}
+		// a step in the failed line succeeded before it failed
+		emitLocal(0x16, STEPS);							// lload
+		emitLocal(0x16, MARK);
+		emit1(0x94);									// lcmp
+		int same = size;
+		emit(0x99, 0);									// ifeq
+		emitLocal(0x15, FAILED_LINE);					// iload
+		emitLocal(0x36, LINE);
+		patch(same, size);
+		storeProgress();
+		emitLocal(0x19, EXCEPTION);						// aload
+		emit(0xc1, pool.classRef("control/Runner$Failure"));	// instanceof
+		int other = size;
+		emit(0x99, 0);
+		emitLocal(0x19, EXCEPTION);
+		emit(0xb6, pool.method("java/lang/Throwable", "getMessage", "()Ljava/lang/String;"));
+		emit1(0xb0);
+		patch(other, size);
+		emitLocal(0x19, EXCEPTION);
+		emit1(0xbf);									// athrow
+
+		if (size > MAX_CODE) {
+			throw new Unsupported();
+		}
+		return classFile();
+	}
+
+	/**
+	 * At the end of a line, note it as the line of the last step if any of
+	 * its steps were taken.
+	 */
+	private void endLine(int line) {
+		emitLocal(0x16, STEPS);
+		emitLocal(0x16, MARK);
+		emit1(0x94);
+		int same = size;
+		emit(0x99, 0);
+		pushInt(line);
+		emitLocal(0x36, LINE);
+		patch(same, size);
+		emitLocal(0x16, STEPS);
+		emitLocal(0x37, MARK);
+	}
+
+	private void storeProgress() {
+		aload(STATE);
+		emitLocal(0x16, STEPS);
+		emit(0xb5, pool.field(STATE_CLASS, "steps", "J"));	// putfield
+		aload(STATE);
+		emitLocal(0x15, LINE);
+		emit(0xb5, pool.field(STATE_CLASS, "line", "I"));
+	}
+
+	private void eval(Code code, int depth) {
+
+		if (code == null) {
+			throw new NullPointerException("Called eval with a null pointer.");
+		}
+		if (size > MAX_CODE) {
+			throw new Unsupported();
+		}
+
+		if (code instanceof BasicCode) {
+			aload(STATE);
+			pushInt(((BasicCode) code).getInstruction().ordinal());
+			emit(0xb8, pool.method(HELPERS, "act", "(Lcontrol/Runner$State;I)V"));	// invokestatic
+			emitLocal(0x16, STEPS);
+			emit1(0x0a);								// lconst_1
+			emit1(0x61);								// ladd
+			emitLocal(0x37, STEPS);
+		} else if (code instanceof IfElseCode) {
+			IfElseCode iec = (IfElseCode) code;
+			aload(KAREL);
+			aload(WORLD);
+			pushInt(iec.getCondition().ordinal());
+			emit(0xb8, pool.method(HELPERS, "test", "(Lmodel/Karel;Lmodel/World;I)Z"));
+			int branch = size;
+			emit(0x99, 0);								// ifeq
+			evalAll(iec.getBody1(), depth);
+			int jump = size;
+			emit(0xa7, 0);								// goto
+			patch(branch, size);
+			evalAll(iec.getBody2(), depth);
+			patch(jump, size);
+		} else if (code instanceof LoopCode) {
+			LoopCode lc = (LoopCode) code;
+
+			// a loop that never runs compiles to nothing
+			if (lc.getCounter() > 0) {
+				int counter = FIRST_COUNTER + depth;
+				if (counter >= MAX_LOCALS) {
+					throw new Unsupported();
+				}
+				maxLocals = Math.max(maxLocals, counter + 1);
+				pushInt(lc.getCounter());
+				emitLocal(0x36, counter);
+				int top = size;
+				evalAll(lc.getBody(), depth + 1);
+				emit1(0x84);							// iinc counter -1
+				emit1(counter);
+				emit1(0xff);
+				emitLocal(0x15, counter);
+				int back = size;
+				emit(0x9d, 0);							// ifgt
+				patch(back, top);
+			}
+		} else if (code instanceof CustomCode) {
+			CustomCode cc = (CustomCode) code;
+			if (inlining.containsKey(cc) || inlining.size() == Program.MAX_CALL_DEPTH) {
+				// a custom action that uses itself cannot be inlined, and one
+				// nested too deeply must fail as it would in the interpreter
+				throw new Unsupported();
+			}
+			inlining.put(cc, Boolean.TRUE);
+			evalAll(cc.getCodeBody(), depth);
+			inlining.remove(cc);
+		} else {
+			throw new IllegalArgumentException("Unrecognized code type.");
+		}
+	}
+
+	private void evalAll(List<Code> body, int depth) {
+		for (Code code : body) {
+			eval(code, depth);
+		}
+	}
+
+	private void aload(int local) {
+		emitLocal(0x19, local);
+	}
+
+	private void astore(int local) {
+		emitLocal(0x3a, local);
+	}
+
+	/**
+	 * Emit a load or store of a local variable below 256.
+	 */
+	private void emitLocal(int opcode, int local) {
+		emit1(opcode);
+		emit1(local);
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			emit1(0x03 + value);						// iconst_<n>
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit1(0x10);								// bipush
+			emit1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			emit(0x11, value);							// sipush
+		} else {
+			int index = pool.integer(value);
+			if (index < 256) {
+				emit1(0x12);							// ldc
+				emit1(index);
+			} else {
+				emit(0x13, index);						// ldc_w
+			}
+		}
+	}
+
+	private void emit(int opcode, int operand) {
+		emit1(opcode);
+		emit1(operand >> 8);
+		emit1(operand);
+	}
+
+	private void emit1(int b) {
+		if (size == code.length) {
+			code = Arrays.copyOf(code, size * 2);
+		}
+		code[size++] = (byte) b;
+	}
+
+	/**
+	 * Set the offset of the branch instruction at index at, so that it
+	 * continues at index target.
+	 */
+	private void patch(int at, int target) {
+		int offset = target - at;
+		code[at + 1] = (byte) (offset >> 8);
+		code[at + 2] = (byte) offset;
+	}
+
+	private byte[] classFile() {
+		int thisClass = pool.classRef(CLASS_NAME);
+		int superClass = pool.classRef("java/lang/Object");
+		int runner = pool.classRef("control/Runner");
+		int init = pool.method("java/lang/Object", "<init>", "()V");
+		int initName = pool.utf8("<init>");
+		int initType = pool.utf8("()V");
+		int runName = pool.utf8("run");
+		int runType = pool.utf8("(Lcontrol/Runner$State;)Ljava/lang/String;");
+		int codeName = pool.utf8("Code");
+
+		Bytes out = new Bytes();
+		out.u4(0xcafebabe);
+		// class file version 49, which the JVM verifies without stack maps
+		out.u2(0);
+		out.u2(49);
+		pool.write(out);
+		out.u2(0x0030);									// final, super
+		out.u2(thisClass);
+		out.u2(superClass);
+		out.u2(1);
+		out.u2(runner);
+		out.u2(0);										// fields
+		out.u2(2);										// methods
+
+		out.u2(0x0001);
+		out.u2(initName);
+		out.u2(initType);
+		out.u2(1);
+		out.u2(codeName);
+		out.u4(12 + 5);
+		out.u2(1);										// max stack
+		out.u2(1);										// max locals
+		out.u4(5);
+		out.u1(0x2a);									// aload_0
+		out.u1(0xb7);									// invokespecial
+		out.u2(init);
+		out.u1(0xb1);									// return
+		out.u2(0);
+		out.u2(0);
+
+		out.u2(0x0001);
+		out.u2(runName);
+		out.u2(runType);
+		out.u2(1);
+		out.u2(codeName);
+		out.u4(12 + size + 8 * ranges.size());
+		out.u2(8);
+		out.u2(maxLocals);
+		out.u4(size);
+		out.bytes(code, size);
+		out.u2(ranges.size());
+		for (int[] range : ranges) {
+			out.u2(range[0]);
+			out.u2(range[1]);
+			out.u2(range[2]);
+			out.u2(0);									// any exception
+		}
+		out.u2(0);
+
+		out.u2(0);										// class attributes
+		return out.toByteArray();
+	}
+
+	/**
+	 * Thrown when a program cannot be compiled into a single method.
+	 */
+	private static final class Unsupported extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * A growable big-endian byte buffer.
+	 */
+	private static final class Bytes {
+		private byte[] data = new byte[1024];
+		private int size = 0;
+
+		void u1(int b) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = (byte) b;
+		}
+
+		void u2(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+
+		void u4(int v) {
+			u2(v >> 16);
+			u2(v);
+		}
+
+		void bytes(byte[] b, int length) {
+			for (int i = 0; i < length; i++) {
+				u1(b[i]);
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+	/**
+	 * The constant pool of the generated class. Each constant is added once.
+	 */
+	private static final class ConstantPool {
+		private final Bytes entries = new Bytes();
+		private final Map<String, Integer> indices = new HashMap<String, Integer>();
+		private int count = 1;
+
+		int utf8(String s) {
+			Integer index = indices.get("U" + s);
+			if (index == null) {
+				index = count++;
+				indices.put("U" + s, index);
+				entries.u1(1);
+				// only ASCII names are used
+				entries.u2(s.length());
+				for (int i = 0; i < s.length(); i++) {
+					entries.u1(s.charAt(i));
+				}
+			}
+			return index;
+		}
+
+		int integer(int value) {
+			Integer index = indices.get("I" + value);
+			if (index == null) {
+				index = count++;
+				indices.put("I" + value, index);
+				entries.u1(3);
+				entries.u4(value);
+			}
+			return index;
+		}
+
+		int classRef(String name) {
+			int nameIndex = utf8(name);
+			Integer index = indices.get("C" + name);
+			if (index == null) {
+				index = count++;
+				indices.put("C" + name, index);
+				entries.u1(7);
+				entries.u2(nameIndex);
+			}
+			return index;
+		}
+
+		int field(String owner, String name, String type) {
+			return member(9, owner, name, type);
+		}
+
+		int method(String owner, String name, String type) {
+			return member(10, owner, name, type);
+		}
+
+		private int member(int tag, String owner, String name, String type) {
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int typeIndex = utf8(type);
+			String key = "T" + name + ":" + type;
+			Integer nameAndType = indices.get(key);
+			if (nameAndType == null) {
+				nameAndType = count++;
+				indices.put(key, nameAndType);
+				entries.u1(12);
+				entries.u2(nameIndex);
+				entries.u2(typeIndex);
+			}
+			key = "M" + tag + owner + "." + name + ":" + type;
+			Integer index = indices.get(key);
+			if (index == null) {
+				index = count++;
+				indices.put(key, index);
+				entries.u1(tag);
+				entries.u2(ownerIndex);
+				entries.u2(nameAndType);
+			}
+			return index;
+		}
+
+		void write(Bytes out) {
+			out.u2(count);
+			out.bytes(entries.data, entries.size);
+		}
+	}
+
+}
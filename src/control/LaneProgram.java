@@ -0,0 +1,457 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.BasicCode;
+import model.Code;
+import model.Code.Action;
+import model.Code.Proposition;
+import model.CustomCode;
+import model.IfElseCode;
+import model.Karel;
+import model.Karel.Facing;
+import model.LoopCode;
+import model.World;
+import model.World.Contents;
+
+/**
+ * Runs one program to completion in up to 64 worlds of the same size at
+ * once, one world to each bit of a long. Only programs that never touch a
+ * beeper can be run this way, since then Karel's walls and facing are all
+ * that differs between the worlds.
+ *
+ * The program is compiled into a tree, as a TreeProgram is, but each node
+ * runs for a mask of the worlds, or lanes, that reach it. Karel's facing is
+ * kept as four masks, one for each direction, so turns and facing tests are
+ * a few bitwise operations for every lane at once. The walls of all the
+ * worlds are kept bit by bit in one long per cell and side, so the wall
+ * sensors gather a bit for each lane. A lane's walls around a cell are only
+ * read from its world the first time its Karel stands there, so a short
+ * program costs no more in a large world than in a small one. An if sends each lane down the branch
+ * it chooses, and a lane whose Karel fails drops out of the mask. Every lane
+ * ends exactly as a Controller running the same program would.
+ */
+final class LaneProgram {
+
+	/**
+	 * The most worlds run at once.
+	 */
+	static final int LANES = 64;
+	// the largest world worth running in lanes, in cells; past 64 by 64,
+	// clearing the wall bits of every cell costs more than lanes save
+	static final int MAX_CELLS = 1 << 12;
+	
+	private static final int NORTH = Facing.NORTH.ordinal();
+	private static final int SOUTH = Facing.SOUTH.ordinal();
+	private static final int EAST = Facing.EAST.ordinal();
+	private static final int WEST = Facing.WEST.ordinal();
+	private static final Facing[] FACINGS = Facing.values();
+	private static final String FINISHED = "Code has finished running";
+	private static final String TOO_DEEP = "Custom actions are nested too deeply.";
+	
+	private final Node[] lines;
+	
+	private LaneProgram(Node[] lines) {
+		this.lines = lines;
+	}
+	
+	/**
+	 * Compile a Karel program to run in many worlds at once.
+	 *
+	 * @param codeList the top-level blocks of the program
+	 * @return the compiled program, or null if the program uses beepers
+	 */
+	static LaneProgram compile(List<Code> codeList) {
+		Map<CustomCode, Call> calls = new IdentityHashMap<CustomCode, Call>();
+		Node[] lines = new Node[codeList.size()];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = eval(codeList.get(i), calls);
+			if (lines[i] == null) {
+				return null;
+			}
+		}
+		return new LaneProgram(lines);
+	}
+	
+	/**
+	 * Compile a block of code, or return null if it uses beepers.
+	 */
+	private static Node eval(Code code, Map<CustomCode, Call> calls) {
+	
+		if (code == null) {
+			throw new NullPointerException("Called eval with a null pointer.");
+		}
+		
+		if (code instanceof BasicCode) {
+			Action action = ((BasicCode) code).getInstruction();
+			switch (action) {
+			case MOVE:			return new Move();
+			case TURN_LEFT:		return new Turn(true);
+			case TURN_RIGHT:	return new Turn(false);
+			default:			return null;
+			}
+		} else if (code instanceof IfElseCode) {
+			IfElseCode iec = (IfElseCode) code;
+			if (iec.getCondition() == Proposition.NEXT_TO_BEEPER) {
+				return null;
+			}
+			Node body1 = evalAll(iec.getBody1(), calls);
+			Node body2 = evalAll(iec.getBody2(), calls);
+			return body1 == null || body2 == null ? null : new IfElse(iec.getCondition(), body1, body2);
+		} else if (code instanceof LoopCode) {
+			LoopCode lc = (LoopCode) code;
+			Node body = evalAll(lc.getBody(), calls);
+			return body == null ? null : new Loop(lc.getCounter(), body);
+		} else if (code instanceof CustomCode) {
+			CustomCode cc = (CustomCode) code;
+			Call call = calls.get(cc);
+			if (call == null) {
+				// register the call first, in case the custom action uses itself
+				call = new Call();
+				calls.put(cc, call);
+				call.body = evalAll(cc.getCodeBody(), calls);
+				if (call.body == null) {
+					return null;
+				}
+			}
+			return call;
+		} else {
+			throw new IllegalArgumentException("Unrecognized code type.");
+		}
+	}
+	
+	private static Node evalAll(List<Code> body, Map<CustomCode, Call> calls) {
+		Node[] nodes = new Node[body.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = eval(body.get(i), calls);
+			if (nodes[i] == null) {
+				return null;
+			}
+		}
+		return nodes.length == 1 ? nodes[0] : new Sequence(nodes);
+	}
+	
+	/**
+	 * Run the program to completion in each of the worlds, which must all be
+	 * the same size, and not empty. Karel starts at (0, 0) facing north in every world.
+	 *
+	 * @param worlds up to LANES worlds; none is modified
+	 * @return the result of each run, in the order of the worlds
+	 */
+	Grader.Result[] run(World[] worlds) {
+		Lanes lanes = new Lanes(worlds);
+		Grader.Result[] results = new Grader.Result[worlds.length];
+		long alive = 0;
+		for (int i = 0; i < worlds.length; i++) {
+			if (worlds[i].getContents(0, 0) == Contents.WALL) {
+				results[i] = Grader.cannotStart(worlds[i], new IllegalArgumentException("Cannot place Karel in a wall."));
+			} else {
+				alive |= 1L << i;
+			}
+		}
+		for (int line = 0; line < lines.length && alive != 0; line++) {
+			lanes.acted = 0;
+			alive = lines[line].run(lanes, alive);
+			lanes.endLine(line);
+		}
+		for (int i = 0; i < worlds.length; i++) {
+			if (results[i] == null) {
+				results[i] = lanes.result(i);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * The state of Karel in every lane.
+	 */
+	private static final class Lanes {
+		final World[] worlds;
+		final int xSize;
+		// bit i of blocked[side][cell] is whether Karel cannot leave the cell
+		// by that side in world i, once bit i of read[cell] is set
+		final long[][] blocked;
+		final long[] read;
+		// Karel's facing in each lane, one mask per direction
+		long north;
+		long south;
+		long east;
+		long west;
+		// Karel's row-major cell in each lane
+		final int[] cell;
+		// each lane's step count, bit by bit: bit i of steps[k] is bit k of
+		// the count for lane i
+		final long[] steps = new long[64];
+		// lanes that have taken a step during the current top-level line
+		long acted;
+		final int[] line;
+		final String[] message;
+		final int[] failure;
+		int depth;
+		
+		Lanes(World[] worlds) {
+			this.worlds = worlds;
+			xSize = worlds[0].getXSize();
+			int ySize = worlds[0].getYSize();
+			for (World world : worlds) {
+				if (world.getXSize() != xSize || world.getYSize() != ySize) {
+					throw new IllegalArgumentException("Worlds run together must be the same size.");
+				}
+			}
+			blocked = new long[4][xSize * ySize];
+			read = new long[xSize * ySize];
+			north = worlds.length == LANES ? -1L : (1L << worlds.length) - 1;
+			cell = new int[worlds.length];
+			line = new int[worlds.length];
+			Arrays.fill(line, -1);
+			message = new String[worlds.length];
+			failure = new int[worlds.length];
+		}
+		
+		/**
+		 * Read the walls around a cell in one lane's world.
+		 */
+		private void readCell(int lane, int at) {
+			World world = worlds[lane];
+			int x = at % xSize;
+			int y = at / xSize;
+			long bit = 1L << lane;
+			for (int side = 0; side < 4; side++) {
+				if (isBlocked(world, x, y, FACINGS[side])) {
+					blocked[side][at] |= bit;
+				}
+			}
+			read[at] |= bit;
+		}
+		
+		private static boolean isBlocked(World world, int x, int y, Facing side) {
+			if (world.hasWall(x, y, side)) {
+				return true;
+			}
+			int nx = x + (side == Facing.EAST ? 1 : side == Facing.WEST ? -1 : 0);
+			int ny = y + (side == Facing.NORTH ? 1 : side == Facing.SOUTH ? -1 : 0);
+			return world.getContents(nx, ny) == Contents.WALL;
+		}
+		
+		/**
+		 * Return the lanes of a mask in which Karel is blocked on one side,
+		 * given as the side it is on for each way Karel may face.
+		 */
+		long blocked(long mask, int ifNorth, int ifSouth, int ifEast, int ifWest) {
+			return gather(mask & north, blocked[ifNorth]) | gather(mask & south, blocked[ifSouth])
+					| gather(mask & east, blocked[ifEast]) | gather(mask & west, blocked[ifWest]);
+		}
+		
+		private long gather(long mask, long[] sides) {
+			long result = 0;
+			for (long rest = mask; rest != 0; rest &= rest - 1) {
+				int lane = Long.numberOfTrailingZeros(rest);
+				int at = cell[lane];
+				if ((read[at] & 1L << lane) == 0) {
+					readCell(lane, at);
+				}
+				result |= sides[at] & (1L << lane);
+			}
+			return result;
+		}
+		
+		void step(long mask) {
+			acted |= mask;
+			long carry = mask;
+			for (int k = 0; carry != 0; k++) {
+				long both = steps[k] & carry;
+				steps[k] ^= carry;
+				carry = both;
+			}
+		}
+		
+		void fail(long mask, String why, int result) {
+			for (long rest = mask; rest != 0; rest &= rest - 1) {
+				int lane = Long.numberOfTrailingZeros(rest);
+				message[lane] = why;
+				failure[lane] = result;
+			}
+		}
+		
+		/**
+		 * Record the line of every lane that took a step during it.
+		 */
+		void endLine(int at) {
+			for (long rest = acted; rest != 0; rest &= rest - 1) {
+				line[Long.numberOfTrailingZeros(rest)] = at;
+			}
+		}
+		
+		Grader.Result result(int lane) {
+			long count = 0;
+			for (int k = 0; k < steps.length; k++) {
+				count |= (steps[k] >>> lane & 1) << k;
+			}
+			long bit = 1L << lane;
+			Facing facing = (north & bit) != 0 ? Facing.NORTH : (south & bit) != 0 ? Facing.SOUTH
+					: (east & bit) != 0 ? Facing.EAST : Facing.WEST;
+			boolean failed = message[lane] != null;
+			return new Grader.Result(failed ? Controller.Status.FAILED : Controller.Status.FINISHED,
+					cell[lane] % xSize, cell[lane] / xSize, facing, worlds[lane].getBeeperCount(), count,
+					line[lane], failed ? message[lane] : FINISHED, failure[lane]);
+		}
+	}
+	
+	private static abstract class Node {
+		/**
+		 * @param mask the lanes to run in
+		 * @return the lanes in which Karel has not failed
+		 */
+		abstract long run(Lanes lanes, long mask);
+	}
+	
+	private static final class Sequence extends Node {
+		private final Node[] body;
+		
+		Sequence(Node[] body) {
+			this.body = body;
+		}
+		
+		@Override
+		long run(Lanes lanes, long mask) {
+			for (int i = 0; i < body.length && mask != 0; i++) {
+				mask = body[i].run(lanes, mask);
+			}
+			return mask;
+		}
+	}
+	
+	private static final class Loop extends Node {
+		private final int counter;
+		private final Node body;
+		
+		Loop(int counter, Node body) {
+			this.counter = counter;
+			this.body = body;
+		}
+		
+		@Override
+		long run(Lanes lanes, long mask) {
+			for (int i = counter; i > 0 && mask != 0; i--) {
+				mask = body.run(lanes, mask);
+			}
+			return mask;
+		}
+	}
+	
+	private static final class IfElse extends Node {
+		private final Proposition prop;
+		private final Node body1;
+		private final Node body2;
+		
+		IfElse(Proposition prop, Node body1, Node body2) {
+			this.prop = prop;
+			this.body1 = body1;
+			this.body2 = body2;
+		}
+		
+		@Override
+		long run(Lanes lanes, long mask) {
+			long holds = mask & test(lanes, mask);
+			long survivors = 0;
+			if (holds != 0) {
+				survivors |= body1.run(lanes, holds);
+			}
+			if (holds != mask) {
+				survivors |= body2.run(lanes, mask & ~holds);
+			}
+			return survivors;
+		}
+		
+		private long test(Lanes lanes, long mask) {
+			switch (prop) {
+			case IS_FRONT_CLEAR:	return ~lanes.blocked(mask, NORTH, SOUTH, EAST, WEST);
+			case IS_LEFT_CLEAR:		return ~lanes.blocked(mask, WEST, EAST, NORTH, SOUTH);
+			case IS_RIGHT_CLEAR:	return ~lanes.blocked(mask, EAST, WEST, SOUTH, NORTH);
+			case IS_FACING_NORTH:	return lanes.north;
+			case IS_FACING_SOUTH:	return lanes.south;
+			case IS_FACING_EAST:	return lanes.east;
+			case IS_FACING_WEST:	return lanes.west;
+			default: throw new IllegalArgumentException("Unknown proposition used");
+			}
+		}
+	}
+	
+	private static final class Move extends Node {
+		@Override
+		long run(Lanes lanes, long mask) {
+			long stuck = lanes.blocked(mask, NORTH, SOUTH, EAST, WEST);
+			if (stuck != 0) {
+				lanes.fail(stuck, Karel.failureMessage(Karel.BLOCKED), Karel.BLOCKED);
+				mask &= ~stuck;
+			}
+			shift(lanes, mask & lanes.north, lanes.xSize);
+			shift(lanes, mask & lanes.south, -lanes.xSize);
+			shift(lanes, mask & lanes.east, 1);
+			shift(lanes, mask & lanes.west, -1);
+			lanes.step(mask);
+			return mask;
+		}
+		
+		private static void shift(Lanes lanes, long mask, int by) {
+			for (long rest = mask; rest != 0; rest &= rest - 1) {
+				lanes.cell[Long.numberOfTrailingZeros(rest)] += by;
+			}
+		}
+	}
+	
+	private static final class Turn extends Node {
+		private final boolean left;
+		
+		Turn(boolean left) {
+			this.left = left;
+		}
+		
+		@Override
+		long run(Lanes lanes, long mask) {
+			long keep = ~mask;
+			long n = lanes.north;
+			long s = lanes.south;
+			long e = lanes.east;
+			long w = lanes.west;
+			if (left) {
+				lanes.north = n & keep | e & mask;
+				lanes.west = w & keep | n & mask;
+				lanes.south = s & keep | w & mask;
+				lanes.east = e & keep | s & mask;
+			} else {
+				lanes.north = n & keep | w & mask;
+				lanes.east = e & keep | n & mask;
+				lanes.south = s & keep | e & mask;
+				lanes.west = w & keep | s & mask;
+			}
+			lanes.step(mask);
+			return mask;
+		}
+	}
+	
+	private static final class Call extends Node {
+		// set once the custom action is compiled
+		private Node body;
+		
+		@Override
+		long run(Lanes lanes, long mask) {
+			if (lanes.depth == Program.MAX_CALL_DEPTH) {
+				lanes.fail(mask, TOO_DEEP, Karel.OK);
+				return 0;
+			}
+			lanes.depth++;
+			mask = body.run(lanes, mask);
+			lanes.depth--;
+			return mask;
+		}
+	}
+
+}
@@ -0,0 +1,421 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import model.Code.Proposition;
+
+/**
+ * Optimizer rewrites a compiled Program into a shorter one with the same
+ * effect on Karel and the World. Instructions are only combined when they
+ * belong to the same line and no branch lands between them, so
+ * getExecutionLine() reports the same lines as in the unoptimized program;
+ * turns that cancel out are replaced by a LINE marker for that reason.
+ * Fewer steps are counted, since folded turns are never performed.
+ */
+class Optimizer {
+
+	// abstract facings; 0 to 3 are the known facings, clockwise from north
+	private static final int UNREACHED = -1;
+	private static final int NORTH = 0;
+	private static final int UNKNOWN = 4;
+	private static final int CONTEXTS = 5;
+	
+	/**
+	 * Remove every IS_FACING_* branch whose outcome is known at compile time,
+	 * together with the code it can never run. Karel always starts facing
+	 * north (see Karel.setWorld), and every turn after that is in the program,
+	 * so Karel's facing can be tracked through straight-line code, loops and
+	 * custom actions. Each custom action is analyzed once for each facing it
+	 * can be called with.
+	 * 
+	 * @param program the program to optimize, which must start with Karel
+	 * facing north
+	 * @return an equivalent program without the branches that were decided
+	 */
+	static Program foldFacing(Program program) {
+		long[] code = program.code;
+		int n = code.length;
+		
+		// state[context][pc] is the facing before instruction pc, when the
+		// custom action containing it was called facing context (the top-level
+		// program is always in context NORTH)
+		int[][] state = new int[CONTEXTS][n];
+		// summary[context][entry] is the facing after the custom action at
+		// entry returns, when called facing context
+		int[][] summary = new int[CONTEXTS][n];
+		for (int c = 0; c < CONTEXTS; c++) {
+			Arrays.fill(state[c], UNREACHED);
+			Arrays.fill(summary[c], UNREACHED);
+		}
+		// the entry of the custom action (or top-level program) each instruction is in
+		int[] owner = new int[n];
+		List<List<Integer>> callers = findCallers(code);
+		
+		int[] worklist = new int[16];
+		int pending = 0;
+		state[NORTH][0] = NORTH;
+		owner[0] = 0;
+		worklist[pending++] = 0;
+		
+		while (pending > 0) {
+			int item = worklist[--pending];
+			int context = item / n;
+			int pc = item % n;
+			long instruction = code[pc];
+			int opcode = Program.opcode(instruction);
+			int facing = state[context][pc];
+			int target = pc + 1 + Program.operand(instruction);
+			
+			// successors as (pc, facing) pairs
+			int[] next = null;
+			switch (opcode) {
+			case Program.TURN_RIGHT:
+				next = new int[] { pc + 1, facing == UNKNOWN ? UNKNOWN : (facing + 1) % 4 };
+				break;
+			case Program.TURN_LEFT:
+				next = new int[] { pc + 1, facing == UNKNOWN ? UNKNOWN : (facing + 3) % 4 };
+				break;
+			case Program.JUMP:
+				next = new int[] { target, facing };
+				break;
+			case Program.LOOP_BACK:
+				next = new int[] { target, facing, pc + 1, facing };
+				break;
+			case Program.CALL:
+				if (join(state, facing, target, facing)) {
+					owner[target] = target;
+					worklist = push(worklist, pending++, facing * n + target);
+				}
+				int after = summary[facing][target];
+				if (after != UNREACHED) {
+					next = new int[] { pc + 1, after };
+				}
+				break;
+			case Program.RETURN:
+				int entry = owner[pc];
+				int joined = join(summary[context][entry], facing);
+				if (joined != summary[context][entry]) {
+					summary[context][entry] = joined;
+					// revisit every call made in this context
+					for (int call : callers.get(entry)) {
+						for (int c = 0; c < CONTEXTS; c++) {
+							if (state[c][call] == context) {
+								worklist = push(worklist, pending++, c * n + call);
+							}
+						}
+					}
+				}
+				break;
+			case Program.HALT:
+				break;
+			default:
+				if (opcode >= Program.BRANCH_ON_FALSE && opcode <= Program.BRANCH_ON_BEEPER) {
+					int wanted = facingOf(opcode);
+					if (wanted == UNREACHED) {
+						next = new int[] { pc + 1, facing, target, facing };
+					} else if (facing == UNKNOWN) {
+						// on the true side, Karel must face the wanted direction
+						next = new int[] { pc + 1, wanted, target, UNKNOWN };
+					} else {
+						next = new int[] { facing == wanted ? pc + 1 : target, facing };
+					}
+				} else {
+					next = new int[] { pc + 1, facing };
+				}
+				break;
+			}
+			
+			for (int i = 0; next != null && i < next.length; i += 2) {
+				if (join(state, context, next[i], next[i + 1])) {
+					owner[next[i]] = owner[pc];
+					worklist = push(worklist, pending++, context * n + next[i]);
+				}
+			}
+		}
+		
+		// drop unreachable code, and branches that always go the same way
+		Rewriter out = new Rewriter(code);
+		for (int pc = 0; pc < n; pc++) {
+			boolean reached = false;
+			boolean taken = false;
+			boolean notTaken = false;
+			int wanted = facingOf(Program.opcode(code[pc]));
+			for (int c = 0; c < CONTEXTS; c++) {
+				int facing = state[c][pc];
+				if (facing != UNREACHED) {
+					reached = true;
+					taken |= facing == UNKNOWN || facing != wanted;
+					notTaken |= facing == UNKNOWN || facing == wanted;
+				}
+			}
+			if (!reached) {
+				out.skip(pc);
+			} else if (wanted == UNREACHED || (taken && notTaken)) {
+				out.copy(pc);
+			} else if (taken) {
+				out.emit(pc, Program.pack(Program.JUMP, 0, Program.line(code[pc])));
+			} else {
+				out.skip(pc);
+			}
+		}
+		return removeEmptyJumps(out.finish());
+	}
+	
+	/**
+	 * Remove jumps to the very next instruction, such as the jump over an
+	 * else body that is no longer there.
+	 */
+	private static Program removeEmptyJumps(Program program) {
+		boolean found;
+		do {
+			long[] code = program.code;
+			Rewriter out = new Rewriter(code);
+			found = false;
+			for (int pc = 0; pc < code.length; pc++) {
+				if (Program.opcode(code[pc]) == Program.JUMP && Program.operand(code[pc]) == 0) {
+					out.skip(pc);
+					found = true;
+				} else {
+					out.copy(pc);
+				}
+			}
+			program = out.finish();
+		} while (found);
+		return program;
+	}
+	
+	/**
+	 * Find the facing that a branch tests for, clockwise from north.
+	 * 
+	 * @return the facing, or UNREACHED if the opcode does not test Karel's facing
+	 */
+	private static int facingOf(int opcode) {
+		if (opcode < Program.BRANCH_ON_FALSE || opcode > Program.BRANCH_ON_BEEPER) {
+			return UNREACHED;
+		}
+		switch (Proposition.values()[opcode - Program.BRANCH_ON_FALSE]) {
+		case IS_FACING_NORTH:	return 0;
+		case IS_FACING_EAST:	return 1;
+		case IS_FACING_SOUTH:	return 2;
+		case IS_FACING_WEST:	return 3;
+		default:				return UNREACHED;
+		}
+	}
+	
+	private static int join(int a, int b) {
+		if (a == UNREACHED) {
+			return b;
+		}
+		if (b == UNREACHED || a == b) {
+			return a;
+		}
+		return UNKNOWN;
+	}
+	
+	/**
+	 * Merge a facing into the state before an instruction.
+	 * 
+	 * @return true if the state changed
+	 */
+	private static boolean join(int[][] state, int context, int pc, int facing) {
+		int joined = join(state[context][pc], facing);
+		if (joined == state[context][pc]) {
+			return false;
+		}
+		state[context][pc] = joined;
+		return true;
+	}
+	
+	private static int[] push(int[] stack, int at, int item) {
+		if (at == stack.length) {
+			stack = Arrays.copyOf(stack, at * 2);
+		}
+		stack[at] = item;
+		return stack;
+	}
+	
+	/**
+	 * List the CALL instructions that use each custom action, by the index of
+	 * its first instruction.
+	 */
+	private static List<List<Integer>> findCallers(long[] code) {
+		List<List<Integer>> callers = new ArrayList<List<Integer>>(code.length);
+		for (int i = 0; i < code.length; i++) {
+			callers.add(null);
+		}
+		for (int i = 0; i < code.length; i++) {
+			if (Program.opcode(code[i]) == Program.CALL) {
+				int target = i + 1 + Program.operand(code[i]);
+				if (callers.get(target) == null) {
+					callers.set(target, new ArrayList<Integer>());
+				}
+				callers.get(target).add(i);
+			}
+		}
+		return callers;
+	}
+
+	/**
+	 * Fold each run of turns into its net rotation (at most one turn), and
+	 * replace each run of moves with a single counted move.
+	 * 
+	 * @param program the program to optimize
+	 * @return an equivalent, optimized program
+	 */
+	static Program peephole(Program program) {
+		long[] code = program.code;
+		boolean[] targets = findTargets(code);
+		Rewriter out = new Rewriter(code);
+		
+		int i = 0;
+		while (i < code.length) {
+			int opcode = Program.opcode(code[i]);
+			int line = Program.line(code[i]);
+			int end = i + 1;
+			
+			if (opcode == Program.MOVE) {
+				while (continuesRun(code, targets, end, line) && Program.opcode(code[end]) == Program.MOVE) {
+					end++;
+				}
+				if (end - i == 1) {
+					out.copy(i);
+				} else {
+					out.emit(i, Program.pack(Program.MOVE_N, end - i, line));
+				}
+			} else if (isTurn(opcode)) {
+				int rotation = quarterTurns(opcode);
+				while (continuesRun(code, targets, end, line) && isTurn(Program.opcode(code[end]))) {
+					rotation += quarterTurns(Program.opcode(code[end]));
+					end++;
+				}
+				switch (rotation % 4) {
+				case 1:
+					out.emit(i, Program.pack(Program.TURN_RIGHT, 0, line));
+					break;
+				case 2:
+					out.emit(i, Program.pack(Program.TURN_RIGHT, 0, line));
+					out.emit(i, Program.pack(Program.TURN_RIGHT, 0, line));
+					break;
+				case 3:
+					out.emit(i, Program.pack(Program.TURN_LEFT, 0, line));
+					break;
+				default:
+					// keep the line, and the action it reports last
+					out.emit(i, Program.pack(Program.LINE, Program.opcode(code[end - 1]), line));
+					break;
+				}
+			} else {
+				out.copy(i);
+			}
+			for (int j = i + 1; j < end; j++) {
+				out.skip(j);
+			}
+			i = end;
+		}
+		return out.finish();
+	}
+	
+	private static boolean isTurn(int opcode) {
+		return opcode == Program.TURN_LEFT || opcode == Program.TURN_RIGHT;
+	}
+	
+	/**
+	 * Count a turn as quarter turns clockwise.
+	 */
+	private static int quarterTurns(int opcode) {
+		return opcode == Program.TURN_RIGHT ? 1 : 3;
+	}
+	
+	/**
+	 * Determine whether the instruction at index at may be folded into a run
+	 * of instructions on the given line.
+	 */
+	private static boolean continuesRun(long[] code, boolean[] targets, int at, int line) {
+		return at < code.length && !targets[at] && Program.line(code[at]) == line;
+	}
+	
+	/**
+	 * Mark every instruction that a branch, jump, loop or call can continue at.
+	 */
+	private static boolean[] findTargets(long[] code) {
+		boolean[] targets = new boolean[code.length + 1];
+		for (int i = 0; i < code.length; i++) {
+			if (Program.hasTarget(Program.opcode(code[i]))) {
+				targets[i + 1 + Program.operand(code[i])] = true;
+			}
+		}
+		return targets;
+	}
+	
+	/**
+	 * Rewriter builds a new program from an old one, instruction by
+	 * instruction, and then corrects every offset so that it continues at the
+	 * same place as before. Each old instruction must be copied, replaced
+	 * (emitted) or skipped, in order.
+	 */
+	private static class Rewriter {
+		
+		private final long[] old;
+		// for each old instruction, the new index of the first instruction emitted in its place
+		private final int[] newIndex;
+		// for each new instruction, the old instruction whose target it keeps
+		private int[] origin;
+		private long[] code;
+		private int size;
+		private int next;
+		
+		Rewriter(long[] old) {
+			this.old = old;
+			newIndex = new int[old.length + 1];
+			origin = new int[old.length];
+			code = new long[old.length];
+			size = 0;
+			next = 0;
+		}
+		
+		void copy(int at) {
+			emit(at, old[at]);
+		}
+		
+		void skip(int at) {
+			mark(at);
+		}
+		
+		void emit(int at, long instruction) {
+			mark(at);
+			if (size == code.length) {
+				code = Arrays.copyOf(code, size * 2 + 1);
+				origin = Arrays.copyOf(origin, size * 2 + 1);
+			}
+			origin[size] = at;
+			code[size++] = instruction;
+		}
+		
+		private void mark(int at) {
+			while (next <= at) {
+				newIndex[next++] = size;
+			}
+		}
+		
+		Program finish() {
+			mark(old.length - 1);
+			newIndex[old.length] = size;
+			for (int i = 0; i < size; i++) {
+				int opcode = Program.opcode(code[i]);
+				if (Program.hasTarget(opcode)) {
+					int from = origin[i];
+					int target = newIndex[from + 1 + Program.operand(old[from])];
+					code[i] = Program.pack(opcode, target - i - 1, Program.line(code[i]));
+				}
+			}
+			return new Program(Arrays.copyOf(code, size), null);
+		}
+	}
+	
+}
@@ -0,0 +1,148 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.io.Serializable;
+
+/**
+ * A compiled Karel program. The instructions are stored in an array and are
+ * never modified once compiled, so the same Program can be run any number of
+ * times, against any number of worlds. The position of the next instruction
+ * to execute is kept by whoever runs the program, not by the Program itself.
+ * 
+ * Each instruction is packed into a single long: the opcode in the low 8 bits,
+ * the top-level line number in the next 24 bits, and a signed operand in the
+ * high 32 bits. Branch, jump, loop and call instructions at index n continue
+ * at index n + 1 + operand.
+ * 
+ * The top-level program comes first and ends with HALT. It is followed by
+ * one subroutine for each custom action it uses, which is shared by every
+ * place that custom action appears. A lazily compiled program is built as it
+ * runs instead: each batch of lines ends with COMPILE, and the custom actions
+ * first used in a batch are placed just after it, behind a jump. Instructions
+ * never change once they are compiled, so a program can still be run again
+ * while it is being compiled.
+ */
+public final class Program implements Serializable {
+
+	private static final long serialVersionUID = 5L;
+
+	// Karel actions; these match the ordinals of Code.Action
+	static final int MOVE = 0;
+	static final int TURN_LEFT = 1;
+	static final int TURN_RIGHT = 2;
+	static final int PICK_UP = 3;
+	static final int PUT_DOWN = 4;
+	
+	/** Unconditionally skip operand instructions. */
+	static final int JUMP = 5;
+	/** Push operand, the (positive) number of passes through the loop body. */
+	static final int LOOP_ENTRY = 6;
+	/** Count down the innermost loop, jumping back by operand while passes remain. */
+	static final int LOOP_BACK = 7;
+	/** Push the return address and jump by operand to the start of a custom action. */
+	static final int CALL = 8;
+	/** Return from a custom action to the instruction after its CALL. */
+	static final int RETURN = 9;
+	/** End of the top-level program. */
+	static final int HALT = 10;
+	/** Move operand times; only produced by the Optimizer. */
+	static final int MOVE_N = 11;
+	/** Compile more lines of a lazily compiled program, which continue after this instruction. */
+	static final int COMPILE = 12;
+	/**
+	 * Evaluate a proposition and, if it is false, skip operand instructions.
+	 * There is one opcode per proposition: BRANCH_ON_FALSE + its ordinal.
+	 */
+	static final int BRANCH_ON_FALSE = 13;
+	/** The branch on NEXT_TO_BEEPER, the last proposition. */
+	static final int BRANCH_ON_BEEPER = BRANCH_ON_FALSE + 7;
+	/**
+	 * Report operand, a Karel action, as the last one taken on this line,
+	 * without taking it; only produced by the Optimizer, for turns that
+	 * cancel out.
+	 */
+	static final int LINE = BRANCH_ON_BEEPER + 1;
+	
+	/**
+	 * The deepest that custom actions may call one another at run-time. Only a
+	 * custom action that (directly or indirectly) uses itself can reach it.
+	 */
+	static final int MAX_CALL_DEPTH = 1024;
+	
+	static final int MAX_LINE = (1 << 24) - 1;
+	
+	long[] code;
+	// compiles the rest of a lazily compiled program; null once it is complete
+	private transient Compiler compiler;
+	
+	Program(long[] code, Compiler compiler) {
+		this.code = code;
+		this.compiler = compiler;
+	}
+	
+	/**
+	 * Return the number of instructions in this program. A lazily compiled
+	 * program grows as it runs.
+	 * 
+	 * @return the length of the program compiled so far
+	 */
+	public int size() {
+		return compiler == null ? code.length : compiler.size();
+	}
+	
+	/**
+	 * Determine whether every line of this program has been compiled.
+	 * 
+	 * @return false if this program is being compiled lazily, and is not
+	 * complete yet
+	 */
+	public boolean isComplete() {
+		return compiler == null;
+	}
+	
+	/**
+	 * Called when execution reaches a COMPILE instruction. If the code after
+	 * it has not been compiled yet, compile the next few lines.
+	 * 
+	 * @param pc the index after the COMPILE instruction
+	 * @return the code, which may have been moved to a larger array
+	 */
+	long[] extend(int pc) {
+		if (compiler != null && pc == compiler.size()) {
+			code = compiler.compileMore(pc);
+			if (compiler.isDone()) {
+				compiler = null;
+			}
+		}
+		return code;
+	}
+	
+	static long pack(int opcode, int operand, int line) {
+		return ((long) operand << 32) | ((line << 8 | opcode) & 0xFFFFFFFFL);
+	}
+	
+	static int opcode(long instruction) {
+		return (int) instruction & 0xFF;
+	}
+	
+	static int line(long instruction) {
+		return (int) instruction >>> 8;
+	}
+	
+	static int operand(long instruction) {
+		return (int) (instruction >> 32);
+	}
+	
+	/**
+	 * Determine whether an instruction's operand is the offset to another
+	 * instruction.
+	 */
+	static boolean hasTarget(int opcode) {
+		return opcode == JUMP || opcode == LOOP_BACK || opcode == CALL
+				|| opcode >= BRANCH_ON_FALSE && opcode <= BRANCH_ON_BEEPER;
+	}
+	
+}
@@ -0,0 +1,63 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import model.Karel;
+import model.World;
+
+/**
+ * A Karel program compiled to run from start to finish in a single call,
+ * such as a TreeProgram. Running it must have exactly the same effect on
+ * Karel and the World, and report the same steps and lines, as running the
+ * Program compiled from the same code.
+ */
+interface Runner {
+
+	/**
+	 * Run the whole program.
+	 * 
+	 * @param state the robot and world to run in; its step count and line are
+	 * updated as the program runs, even if it fails
+	 * @return the message Karel failed with, or null if the program ran to its end
+	 */
+	String run(State state);
+	
+	/**
+	 * The robot and world a Runner runs in, and its progress.
+	 */
+	static final class State {
+		final Karel karel;
+		final World world;
+		long steps;
+		int line;
+		int depth;
+		// the result of the action Karel failed to perform, if any
+		int failure;
+		
+		State(Karel karel, World world) {
+			this.karel = karel;
+			this.world = world;
+			line = -1;
+		}
+	}
+	
+	/**
+	 * Thrown to unwind a run when Karel cannot perform an action.
+	 */
+	static final class Failure extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+
+		Failure(String message) {
+			super(message);
+		}
+		
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	
+}
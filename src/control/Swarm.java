@@ -0,0 +1,283 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import model.Karel;
+import model.World;
+
+/**
+ * Several Karel robots in one world, each running a program of its own.
+ *
+ * Robots take their steps in rounds: in each round every robot still running
+ * takes one step. Whatever a robot learns about beepers in a round is as they
+ * were when the round began, and the beepers robots pick up and put down in
+ * a round are handed out at its end, robot by robot in the order they were
+ * added. A robot that finds no beeper left for it fails, just as Karel does
+ * alone. Walls never change and robots do not get in one another's way, so
+ * everything else a robot does concerns only itself.
+ *
+ * That makes the outcome the same however the robots are scheduled, so they
+ * need not run in lockstep. Each robot runs on its own until it reaches
+ * something involving beepers, and there it waits. When every robot is
+ * waiting or done, the robots waiting in the earliest round take that
+ * round's step, their beepers are handed out, and they run on. Robots run
+ * side by side on a ForkJoinPool, or one after another on the calling
+ * thread, with the same results.
+ */
+public class Swarm {
+
+	// the fewest robots worth splitting between threads
+	private static final int SPLIT = 2;
+	
+	private final World world;
+	private final List<Robot> robots = new ArrayList<Robot>();
+	
+	/**
+	 * Create a swarm with no robots yet.
+	 *
+	 * @param input the world the robots share; it is not modified, since the
+	 * robots work in a snapshot of it
+	 */
+	public Swarm(World input) {
+		world = input.snapshot();
+	}
+	
+	/**
+	 * Add a robot running a session's program.
+	 *
+	 * @param session the program to run; it is compiled in full, and must not
+	 * be changed while the swarm runs
+	 * @param x the robot's starting x position
+	 * @param y the robot's starting y position
+	 * @return the robot's number, which also decides the order in which
+	 * robots are given beepers
+	 * @throws IllegalArgumentException if the position is a wall or out of
+	 * bounds
+	 */
+	public int addRobot(Controller session, int x, int y) {
+		Grader.compileInFull(session);
+		Robot robot = new Robot(world, x, y);
+		robot.controller = new Controller(session, world, robot);
+		robot.controller.parkOnBeepers = true;
+		robots.add(robot);
+		return robots.size() - 1;
+	}
+	
+	public int getRobotCount() {
+		return robots.size();
+	}
+	
+	public World getWorld() {
+		return world;
+	}
+	
+	public Karel getRobot(int index) {
+		return robots.get(index);
+	}
+	
+	/**
+	 * Return how a robot's run has gone so far.
+	 *
+	 * @param index the robot's number
+	 * @return the robot's result; its status is RUNNING if it has not
+	 * finished or failed
+	 */
+	public Grader.Result getResult(int index) {
+		Robot robot = robots.get(index);
+		return Grader.result(robot.controller, robot.status);
+	}
+	
+	/**
+	 * Run every robot until it finishes, fails or takes its share of steps,
+	 * one after another on the calling thread.
+	 *
+	 * @param maxSteps the most actions each robot may take, or 0 for no limit
+	 */
+	public void run(long maxSteps) {
+		run(maxSteps, null);
+	}
+	
+	/**
+	 * Run every robot until it finishes, fails or takes its share of steps,
+	 * with robots side by side on the given pool.
+	 *
+	 * @param maxSteps the most actions each robot may take, or 0 for no limit
+	 * @param pool the pool to run on, or null to run on the calling thread
+	 */
+	public void run(long maxSteps, ForkJoinPool pool) {
+		if (maxSteps < 0) {
+			throw new IllegalArgumentException("Cannot limit a run to a negative number of steps.");
+		}
+		long limit = maxSteps == 0 ? Long.MAX_VALUE : maxSteps;
+		Robot[] all = robots.toArray(new Robot[robots.size()]);
+		while (true) {
+			advance(all, pool, limit, false);
+			// the earliest round a robot is waiting in
+			long round = Long.MAX_VALUE;
+			for (Robot robot : all) {
+				if (robot.waiting(limit)) {
+					round = Math.min(round, robot.controller.getStepCount());
+				}
+			}
+			if (round == Long.MAX_VALUE) {
+				return;
+			}
+			List<Robot> due = new ArrayList<Robot>();
+			for (Robot robot : all) {
+				if (robot.waiting(limit) && robot.controller.getStepCount() == round) {
+					due.add(robot);
+				}
+			}
+			Robot[] turn = due.toArray(new Robot[due.size()]);
+			advance(turn, pool, limit, true);
+			// hand out the beepers, in the order the robots were added
+			for (Robot robot : turn) {
+				robot.settle();
+			}
+		}
+	}
+	
+	/**
+	 * Run robots on their own, or take one step in each of them, on the pool
+	 * if there is one.
+	 */
+	private void advance(Robot[] some, ForkJoinPool pool, long limit, boolean step) {
+		if (pool == null || some.length < SPLIT) {
+			for (Robot robot : some) {
+				robot.advance(limit, step);
+			}
+		} else {
+			pool.invoke(new Advance(some, 0, some.length, limit, step));
+		}
+	}
+	
+	/**
+	 * Advances a range of robots, splitting it in half until it is small.
+	 */
+	private static final class Advance extends RecursiveAction {
+	
+		private static final long serialVersionUID = 1L;
+		
+		private final Robot[] robots;
+		private final int from;
+		private final int to;
+		private final long limit;
+		private final boolean step;
+		
+		Advance(Robot[] robots, int from, int to, long limit, boolean step) {
+			this.robots = robots;
+			this.from = from;
+			this.to = to;
+			this.limit = limit;
+			this.step = step;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from < SPLIT) {
+				for (int i = from; i < to; i++) {
+					robots[i].advance(limit, step);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Advance(robots, from, middle, limit, step),
+					new Advance(robots, middle, to, limit, step));
+		}
+	}
+	
+	/**
+	 * A robot in a swarm. While it takes a step involving beepers, it only
+	 * notes what it would pick up or put down, for the swarm to hand out
+	 * once every robot has taken its step in the round.
+	 */
+	private static final class Robot extends Karel {
+	
+		private static final long serialVersionUID = 1L;
+		
+		Controller controller;
+		Controller.Status status = Controller.Status.RUNNING;
+		// the action noted during a step involving beepers, or -1
+		private int noted = -1;
+		private boolean noting;
+		// the execution line before that step
+		private int lineBefore;
+		
+		Robot(World world, int x, int y) {
+			super(world, x, y);
+		}
+		
+		/**
+		 * Return whether the robot is stopped before something involving
+		 * beepers, waiting for its round.
+		 */
+		boolean waiting(long limit) {
+			return status == Controller.Status.RUNNING && controller.getStepCount() < limit
+					&& controller.atBeeperOperation();
+		}
+		
+		/**
+		 * Run until the robot waits on beepers, finishes, fails or reaches
+		 * the limit; or, if it is waiting, take its step for the round.
+		 */
+		void advance(long limit, boolean step) {
+			if (step) {
+				lineBefore = controller.getExecutionLine();
+				noting = true;
+				controller.parkOnBeepers = false;
+				try {
+					status = controller.executeN(1);
+				} finally {
+					controller.parkOnBeepers = true;
+					noting = false;
+				}
+				return;
+			}
+			while (status == Controller.Status.RUNNING && controller.getStepCount() < limit
+					&& !controller.atBeeperOperation()) {
+				status = controller.executeN((int) Math.min(Integer.MAX_VALUE, limit - controller.getStepCount()));
+			}
+		}
+		
+		/**
+		 * Carry out the action noted in the robot's last step, if any.
+		 */
+		void settle() {
+			if (noted == -1) {
+				return;
+			}
+			int result = noted == Program.PICK_UP ? super.tryPickUp() : super.tryPutDown();
+			noted = -1;
+			if (result != Karel.OK) {
+				controller.retract(result, lineBefore);
+				status = Controller.Status.FAILED;
+			}
+		}
+		
+		@Override
+		public int tryPickUp() {
+			if (!noting) {
+				return super.tryPickUp();
+			}
+			noted = Program.PICK_UP;
+			return Karel.OK;
+		}
+		
+		@Override
+		public int tryPutDown() {
+			if (!noting) {
+				return super.tryPutDown();
+			}
+			noted = Program.PUT_DOWN;
+			return Karel.OK;
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package control;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.BasicCode;
+import model.Code;
+import model.Code.Action;
+import model.Code.Proposition;
+import model.CustomCode;
+import model.IfElseCode;
+import model.KRuntimeException;
+import model.Karel;
+import model.LoopCode;
+
+/**
+ * An alternative to Program for running a Karel program to completion. The
+ * Code tree is compiled into a tree of small nodes, one class per kind of
+ * Code, and each node runs itself directly. Custom actions are compiled once
+ * and shared by every place they are used. A TreeProgram cannot stop part of
+ * the way through, so stepping always uses a Program.
+ */
+final class TreeProgram implements Runner {
+
+	private final Node[] lines;
+	
+	private TreeProgram(Node[] lines) {
+		this.lines = lines;
+	}
+	
+	/**
+	 * Compile a Karel program into a tree.
+	 * 
+	 * @param codeList the top-level blocks of the program
+	 * @return the compiled program
+	 */
+	static TreeProgram compile(List<Code> codeList) {
+		Map<CustomCode, Call> calls = new IdentityHashMap<CustomCode, Call>();
+		Node[] lines = new Node[codeList.size()];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = eval(codeList.get(i), calls);
+		}
+		return new TreeProgram(lines);
+	}
+	
+	private static Node eval(Code code, Map<CustomCode, Call> calls) {
+		
+		if (code == null) {
+			throw new NullPointerException("Called eval with a null pointer.");
+		}
+		
+		if (code instanceof BasicCode) {
+			return new Act(((BasicCode) code).getInstruction());
+		} else if (code instanceof IfElseCode) {
+			IfElseCode iec = (IfElseCode) code;
+			return new IfElse(iec.getCondition(), evalAll(iec.getBody1(), calls),
+					evalAll(iec.getBody2(), calls));
+		} else if (code instanceof LoopCode) {
+			LoopCode lc = (LoopCode) code;
+			return new Loop(lc.getCounter(), evalAll(lc.getBody(), calls));
+		} else if (code instanceof CustomCode) {
+			CustomCode cc = (CustomCode) code;
+			Call call = calls.get(cc);
+			if (call == null) {
+				// register the call first, in case the custom action uses itself
+				call = new Call();
+				calls.put(cc, call);
+				call.body = evalAll(cc.getCodeBody(), calls);
+			}
+			return call;
+		} else {
+			throw new IllegalArgumentException("Unrecognized code type.");
+		}
+	}
+	
+	private static Node evalAll(List<Code> body, Map<CustomCode, Call> calls) {
+		if (body.size() == 1) {
+			return eval(body.get(0), calls);
+		}
+		Node[] nodes = new Node[body.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = eval(body.get(i), calls);
+		}
+		return new Sequence(nodes);
+	}
+	
+	@Override
+	public String run(State state) {
+		try {
+			for (int i = 0; i < lines.length; i++) {
+				lines[i].run(state, i);
+			}
+		} catch (Failure f) {
+			return f.getMessage();
+		}
+		return null;
+	}
+	
+	private static abstract class Node {
+		/**
+		 * @param line the top-level line this node is running for
+		 */
+		abstract void run(State state, int line);
+	}
+	
+	private static final class Sequence extends Node {
+		private final Node[] body;
+		
+		Sequence(Node[] body) {
+			this.body = body;
+		}
+		
+		@Override
+		void run(State state, int line) {
+			for (Node node : body) {
+				node.run(state, line);
+			}
+		}
+	}
+	
+	private static final class Loop extends Node {
+		private final int counter;
+		private final Node body;
+		
+		Loop(int counter, Node body) {
+			this.counter = counter;
+			this.body = body;
+		}
+		
+		@Override
+		void run(State state, int line) {
+			for (int i = counter; i > 0; i--) {
+				body.run(state, line);
+			}
+		}
+	}
+	
+	private static final class IfElse extends Node {
+		private final Proposition prop;
+		private final Node body1;
+		private final Node body2;
+		
+		IfElse(Proposition prop, Node body1, Node body2) {
+			this.prop = prop;
+			this.body1 = body1;
+			this.body2 = body2;
+		}
+		
+		@Override
+		void run(State state, int line) {
+			if (Controller.evaluateProposition(prop, state.karel, state.world)) {
+				body1.run(state, line);
+			} else {
+				body2.run(state, line);
+			}
+		}
+	}
+	
+	private static final class Act extends Node {
+		private final Action action;
+		
+		Act(Action action) {
+			this.action = action;
+		}
+		
+		@Override
+		void run(State state, int line) {
+			int result = Karel.OK;
+			try {
+				switch (action) {
+				case MOVE:
+					result = state.karel.tryMove();
+					break;
+				case PICK_UP:
+					result = state.karel.tryPickUp();
+					break;
+				case PUT_DOWN:
+					result = state.karel.tryPutDown();
+					break;
+				case TURN_LEFT:
+					state.karel.turnLeft();
+					break;
+				case TURN_RIGHT:
+					state.karel.turnRight();
+					break;
+				default:
+					throw new KRuntimeException("Cannot execute this unknown action: " + action);
+				}
+			} catch (RuntimeException re) {
+				throw new Failure(re.getMessage());
+			}
+			if (result != Karel.OK) {
+				state.failure = result;
+				throw new Failure(Karel.failureMessage(result));
+			}
+			state.line = line;
+			state.steps++;
+		}
+	}
+	
+	private static final class Call extends Node {
+		// set once the custom action is compiled
+		private Node body;
+		
+		@Override
+		void run(State state, int line) {
+			if (state.depth == Program.MAX_CALL_DEPTH) {
+				throw new Failure("Custom actions are nested too deeply.");
+			}
+			state.depth++;
+			body.run(state, line);
+			state.depth--;
+		}
+	}
+	
+}
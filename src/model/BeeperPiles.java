@@ -0,0 +1,120 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package model;
+
+/**
+ * The cells of a World holding more than one beeper, and how many each
+ * holds. Piles are rare, so they are kept in an open-addressed table keyed
+ * by row-major cell index rather than in a count for every cell.
+ */
+final class BeeperPiles {
+
+	// cell index + 1 (0 is an empty slot), and the number of beepers there
+	private long[] keys;
+	private int[] counts;
+	private int size;
+
+	BeeperPiles() {
+		keys = new long[16];
+		counts = new int[16];
+	}
+
+	BeeperPiles copy() {
+		BeeperPiles copy = new BeeperPiles();
+		copy.keys = keys.clone();
+		copy.counts = counts.clone();
+		copy.size = size;
+		return copy;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Return the number of beepers in a cell, or the given default if the
+	 * cell holds no pile.
+	 */
+	int get(long cell, int otherwise) {
+		int slot = slot(cell + 1);
+		return keys[slot] == 0 ? otherwise : counts[slot];
+	}
+
+	void put(long cell, int count) {
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		int slot = slot(cell + 1);
+		if (keys[slot] == 0) {
+			keys[slot] = cell + 1;
+			size++;
+		}
+		counts[slot] = count;
+	}
+
+	void remove(long cell) {
+		int mask = keys.length - 1;
+		int slot = slot(cell + 1);
+		if (keys[slot] == 0) {
+			return;
+		}
+		size--;
+		// shift back any later key that would no longer be found past the gap
+		int gap = slot;
+		for (int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				counts[gap] = counts[next];
+				gap = next;
+			}
+		}
+		keys[gap] = 0;
+		counts[gap] = 0;
+	}
+
+	/**
+	 * List the piles, as pairs of cell index and count.
+	 */
+	long[] toArray() {
+		long[] piles = new long[2 * size];
+		int count = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != 0) {
+				piles[count++] = keys[slot] - 1;
+				piles[count++] = counts[slot];
+			}
+		}
+		return piles;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long key) {
+		return (int) (key * 0x9E3779B97F4A7C15L >>> 40);
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[oldKeys.length * 2];
+		counts = new int[keys.length];
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != 0) {
+				int to = slot(oldKeys[slot]);
+				keys[to] = oldKeys[slot];
+				counts[to] = oldCounts[slot];
+			}
+		}
+	}
+
+}
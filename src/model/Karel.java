@@ -4,6 +4,11 @@
 
 package model;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import model.World.Contents;
 import static model.World.Contents.*;
@@ -17,10 +22,53 @@ import static model.World.Contents.*;
  */
 public class Karel implements Serializable {
 
+	// sessions saved before the sensors used the World's masks must still load
+	private static final long serialVersionUID = 3108941114394083906L;
+	
+	// Karel is still saved with a Facing, so saved sessions work both ways
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("world", World.class),
+		new ObjectStreamField("facing", Facing.class),
+		new ObjectStreamField("xPosition", int.class),
+		new ObjectStreamField("yPosition", int.class),
+		new ObjectStreamField("beepersPlaced", int.class),
+		new ObjectStreamField("beepersPicked", int.class)
+	};
+	
 	public enum Facing { NORTH, SOUTH, EAST, WEST };
 	
+	/**
+	 * The results of tryMove(), tryPickUp() and tryPutDown().
+	 */
+	public static final int OK = 0;
+	public static final int BLOCKED = 1;
+	public static final int NO_BEEPER = 2;
+	public static final int OCCUPIED = 3;
+	
+	private static final String[] FAILURES = {
+		null,
+		"Karel cannot run into a wall or out of bounds.",
+		"No beeper here.",
+		"This grid is occupied."
+	};
+	
+	private static final Facing[] FACINGS = Facing.values();
+	// the step taken by move(), and the direction after a turn, by the
+	// ordinal of Karel's facing
+	private static final int[] DX = { 0, 0, 1, -1 };
+	private static final int[] DY = { 1, -1, 0, 0 };
+	private static final int[] RIGHT_OF = { 2, 3, 1, 0 };
+	private static final int[] LEFT_OF = { 3, 2, 0, 1 };
+	
+	// the World's blocked-neighbour bit in front of, left of and right of
+	// Karel, by the ordinal of his facing
+	private static final int[] FRONT = { World.BLOCKED_NORTH, World.BLOCKED_SOUTH, World.BLOCKED_EAST, World.BLOCKED_WEST };
+	private static final int[] LEFT = { World.BLOCKED_WEST, World.BLOCKED_EAST, World.BLOCKED_NORTH, World.BLOCKED_SOUTH };
+	private static final int[] RIGHT = { World.BLOCKED_EAST, World.BLOCKED_WEST, World.BLOCKED_SOUTH, World.BLOCKED_NORTH };
+	
 	protected World world;
-	protected Facing facing;
+	// the ordinal of Karel's Facing
+	protected transient int direction;
 	protected int xPosition;
 	protected int yPosition;
     protected int beepersPlaced;
@@ -46,7 +94,7 @@ public class Karel implements Serializable {
             throw new IllegalArgumentException("Cannot place Karel out of bounds.");
         }
 		this.world = w;
-		facing = Facing.NORTH;
+		direction = Facing.NORTH.ordinal();
 		xPosition = x;
 		yPosition = y;
         beepersPlaced = beepersPicked = 0;
@@ -59,7 +107,7 @@ public class Karel implements Serializable {
 	 */
 	public void setWorld(World world) {
 		this.world = world;
-		facing = Facing.NORTH;
+		direction = Facing.NORTH.ordinal();
 		xPosition = 0;
 		yPosition = 0;
 		beepersPlaced = 0;
@@ -115,22 +163,7 @@ public class Karel implements Serializable {
 	 * This is enforced by our choice of an enum in Java's type system.
 	 */
 	public void turnRight() {
-		switch (facing) {
-		case EAST:
-			facing = Facing.SOUTH;
-			break;
-		case NORTH:
-			facing = Facing.EAST;
-			break;
-		case SOUTH:
-			facing = Facing.WEST;
-			break;
-		case WEST:
-			facing = Facing.NORTH;
-			break;
-		default:
-			break;
-		}
+		direction = RIGHT_OF[direction];
         assert(invariantsMaintained());
 	}
 
@@ -141,8 +174,7 @@ public class Karel implements Serializable {
 	 * This is enforced by our choice of an enum in Java's type system.
 	 */
 	public void turnLeft() {
-		for (int i = 0; i < 3; i++)
-			turnRight();
+		direction = LEFT_OF[direction];
         assert(invariantsMaintained());
 	}
 
@@ -155,20 +187,7 @@ public class Karel implements Serializable {
 	 * the end of the world
 	 */
 	public void move() throws KRuntimeException {
-		
-		if (!isFrontClear()) {
-			throw new KRuntimeException("Karel cannot run into a wall or out of bounds.");
-		}
-		if(this.facing==Facing.SOUTH){
-			yPosition--;
-		}else if(this.facing==Facing.EAST){
-			xPosition++;
-		}else if(this.facing==Facing.WEST){
-			xPosition--;
-		}else if(this.facing==Facing.NORTH){
-			yPosition++;
-		}
-		assert(invariantsMaintained());
+		check(tryMove());
 	}
 
 	/**
@@ -176,79 +195,99 @@ public class Karel implements Serializable {
 	 * @throws KRuntimeException if there is no beeper present
 	 */
 	public void pickUp() throws KRuntimeException {
-		if (world.getContents(xPosition, yPosition) != BEEPER) {
-			throw new KRuntimeException("No beeper here.");
+		check(tryPickUp());
+	}
+
+	/**
+	 * Instructs Karel to place a beeper at his current location, on top of
+	 * any beepers already there
+	 * @throws KRuntimeException if there is no room for another beeper here
+	 */
+	public void putDown() throws KRuntimeException {
+		check(tryPutDown());
+	}
+	
+	/**
+	 * Move forward like move(), but report failure instead of throwing.
+	 * 
+	 * @return OK, or BLOCKED if Karel is facing a wall or the end of the world
+	 */
+	public int tryMove() {
+		if (!isFrontClear()) {
+			return BLOCKED;
+		}
+		xPosition += DX[direction];
+		yPosition += DY[direction];
+		assert(invariantsMaintained());
+		return OK;
+	}
+	
+	/**
+	 * Pick up a beeper like pickUp(), but report failure instead of throwing.
+	 * 
+	 * @return OK, or NO_BEEPER if there is no beeper here
+	 */
+	public int tryPickUp() {
+		int beepers = world.beepersAt(xPosition, yPosition);
+		if (beepers == 0) {
+			return NO_BEEPER;
 		}
-		world.setContents(xPosition, yPosition, NONE);
+		world.putBeepers(xPosition, yPosition, beepers - 1);
         beepersPicked++;
         assert(invariantsMaintained());
+		return OK;
 	}
-
+	
 	/**
-	 * Instructs Karel to place a beeper at his current location
-	 * @throws KRuntimeException if there is already a beeper here
+	 * Put down a beeper like putDown(), but report failure instead of throwing.
+	 * 
+	 * @return OK, or OCCUPIED if there is no room for another beeper here
 	 */
-	public void putDown() throws KRuntimeException {
-		if (world.getContents(xPosition, yPosition) != NONE) {
-			throw new KRuntimeException("This grid is occupied.");
+	public int tryPutDown() {
+		int beepers = world.beepersAt(xPosition, yPosition);
+		if (beepers == Integer.MAX_VALUE
+				|| (beepers == 0 && world.contentsAt(xPosition, yPosition) != NONE)) {
+			return OCCUPIED;
 		}
-		world.setContents(xPosition, yPosition, BEEPER);
+		world.putBeepers(xPosition, yPosition, beepers + 1);
         beepersPlaced++;
         assert(invariantsMaintained());
+		return OK;
+	}
+	
+	/**
+	 * Return the message for a failed action, as its exception would carry.
+	 * 
+	 * @param result a result other than OK from one of the try actions
+	 * @return the message describing the failure
+	 */
+	public static String failureMessage(int result) {
+		if (result <= OK || result >= FAILURES.length) {
+			throw new IllegalArgumentException("Not a failure: " + result);
+		}
+		return FAILURES[result];
+	}
+	
+	private static void check(int result) throws KRuntimeException {
+		if (result != OK) {
+			throw new KRuntimeException(FAILURES[result]);
+		}
 	}
 
 	public boolean isFrontClear(){
-
-		Contents contents;
-		switch(facing){
-			case NORTH: contents = world.getContents(xPosition, yPosition + 1);
-						break;
-			case SOUTH: contents = world.getContents(xPosition, yPosition - 1);
-						break;
-			case EAST: 	contents = world.getContents(xPosition + 1, yPosition);
-						break;
-			case WEST:	contents = world.getContents(xPosition - 1, yPosition);
-						break;
-			default: throw new RuntimeException("Could not determine Karel's facing.");
-		}
-		return !(contents == WALL || contents == OUT_OF_BOUNDS);
-		
+		return (world.cell(xPosition, yPosition) & FRONT[direction]) == 0;
 	}
 	
 	public boolean isLeftClear(){
-		
-		Contents contents;
-		switch(facing){
-			case NORTH: contents = world.getContents(xPosition - 1, yPosition);
-						break;
-			case SOUTH: contents = world.getContents(xPosition + 1, yPosition);
-						break;
-			case EAST: 	contents = world.getContents(xPosition, yPosition + 1);
-						break;
-			case WEST:	contents = world.getContents(xPosition, yPosition - 1);
-						break;
-			default: throw new RuntimeException("Could not determine Karel's facing.");
-		}
-		return !(contents == WALL || contents == OUT_OF_BOUNDS);
-		
+		return (world.cell(xPosition, yPosition) & LEFT[direction]) == 0;
 	}
 	
 	public boolean isRightClear(){
-		
-		Contents contents;
-		switch(facing){
-			case NORTH: contents = world.getContents(xPosition + 1, yPosition);
-						break;
-			case SOUTH: contents = world.getContents(xPosition - 1, yPosition);
-						break;
-			case EAST: 	contents = world.getContents(xPosition + 1, yPosition - 1);
-						break;
-			case WEST:	contents = world.getContents(xPosition - 1, yPosition + 1);
-						break;
-			default: throw new RuntimeException("Could not determine Karel's facing.");
-		}
-		return !(contents == WALL || contents == OUT_OF_BOUNDS);
-		
+		return (world.cell(xPosition, yPosition) & RIGHT[direction]) == 0;
+	}
+	
+	public boolean isNextToBeeper(){
+		return world.beepersAt(xPosition, yPosition) > 0;
 	}
 	
 	/**
@@ -270,7 +309,56 @@ public class Karel implements Serializable {
 	}
 	
 	public Facing getFacing(){
-		return this.facing;
+		return FACINGS[direction];
+	}
+	
+	/**
+	 * Pack Karel's position and facing into a single long, which can be
+	 * stored, hashed and compared cheaply.
+	 * 
+	 * @return Karel's state
+	 * @see #restoreState(long)
+	 */
+	public long exportState() {
+		return (long) xPosition << 33 | (long) yPosition << 2 | direction;
+	}
+	
+	/**
+	 * Return Karel to a state from exportState(), in the same world. Beeper
+	 * counts are not part of the state, and are left alone.
+	 * 
+	 * @param state a state from exportState()
+	 * @throws IllegalArgumentException if the state's position is out of
+	 * bounds or occupied by a wall
+	 */
+	public void restoreState(long state) throws IllegalArgumentException {
+		setPosition((int) (state >>> 33), (int) (state >>> 2) & Integer.MAX_VALUE);
+		direction = (int) state & 3;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("world", world);
+		fields.put("facing", FACINGS[direction]);
+		fields.put("xPosition", xPosition);
+		fields.put("yPosition", yPosition);
+		fields.put("beepersPlaced", beepersPlaced);
+		fields.put("beepersPicked", beepersPicked);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		world = (World) fields.get("world", null);
+		Facing facing = (Facing) fields.get("facing", null);
+		if (facing == null) {
+			throw new InvalidObjectException("Karel has no facing.");
+		}
+		direction = facing.ordinal();
+		xPosition = fields.get("xPosition", 0);
+		yPosition = fields.get("yPosition", 0);
+		beepersPlaced = fields.get("beepersPlaced", 0);
+		beepersPicked = fields.get("beepersPicked", 0);
 	}
  
 
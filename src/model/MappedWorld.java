@@ -0,0 +1,363 @@
+/**
+ * @mainAuthor Stephen Chung
+ */
+
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A World whose grid is kept outside the heap, in a memory-mapped file, one
+ * byte per cell row by row after a 16 byte header. The edges of the world are
+ * not marked in the file, so that a new file needs nothing written to it. Opening a world only maps
+ * the file, so even a world of several gigabytes opens at once, and several
+ * programs can map the same file.
+ *
+ * Cells holding more than one beeper are listed after the grid: the number of
+ * piles, then the row-major cell index and count of each. Piles are rare, so
+ * the whole list is read when the world is opened and written again whenever
+ * a pile changes.
+ *
+ * A world opened from a writable file writes straight through to it. Copies
+ * map the file privately: each page is copied the first time the copy changes
+ * it, and the file is never changed through a copy. Changes made to the file
+ * after a copy is taken may still show through in the pages the copy has not
+ * changed. A file that cannot be written to cannot be mapped privately either,
+ * so a world opened from one keeps its changes on the heap instead.
+ *
+ * Use World.map to open or create one.
+ */
+final class MappedWorld extends World {
+
+	private static final long serialVersionUID = 1L;
+	
+	// "KARL", then the width, height and beeper count
+	private static final int MAGIC = 0x4B41524C;
+	private static final int HEADER = 16;
+	// the file is mapped in pieces of 1 GB, the largest power of two a buffer can hold
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+	// the bytes taken by a pile after the grid: its cell index and count
+	private static final int PILE = 12;
+	// a private mapping notes the cells it has written in pages of 4096 cells
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+	
+	private final File file;
+	private final transient ByteBuffer[] segments;
+	// the file offsets this world has written to a private mapping, so a copy
+	// of it can be given them too, as a bit for each cell in each page written;
+	// null for a world that writes to the file
+	private transient Map<Long, long[]> written;
+	// the page last written, which a run of writes to one cell keeps hitting
+	private transient long lastPage = -1;
+	private transient long[] lastBits;
+	// the changes to a world whose mapping is read-only, by file offset
+	private transient Map<Long, Byte> changes;
+	
+	private MappedWorld(File file, MapMode mode, int x, int y, int beeperCount) throws IOException {
+		super(0, 0);
+		this.file = file;
+		this.xSize = x;
+		this.ySize = y;
+		this.beeperCount = beeperCount;
+		long length = HEADER + (long) x * y;
+		segments = new ByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		RandomAccessFile raf = new RandomAccessFile(file, mode == MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(mode, start, Math.min(length - start, 1L << SEGMENT_SHIFT));
+			}
+		} finally {
+			// the mapping stays valid once the file is closed
+			raf.close();
+		}
+		if (mode == MapMode.PRIVATE) {
+			written = new HashMap<Long, long[]>();
+		} else if (mode == MapMode.READ_ONLY) {
+			changes = new HashMap<Long, Byte>();
+		}
+	}
+	
+	/**
+	 * Map an existing world file.
+	 */
+	static MappedWorld open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		int x, y, beepers;
+		BeeperPiles piles = null;
+		try {
+			if (raf.length() < HEADER || raf.readInt() != MAGIC) {
+				throw new IOException(file + " is not a world file.");
+			}
+			x = raf.readInt();
+			y = raf.readInt();
+			beepers = raf.readInt();
+			long end = HEADER + (long) x * y;
+			if (x < 0 || y < 0 || raf.length() < end) {
+				throw new IOException(file + " is not a world file.");
+			}
+			if (raf.length() >= end + 4) {
+				raf.seek(end);
+				int count = raf.readInt();
+				if (count < 0 || raf.length() < end + 4 + (long) count * PILE) {
+					throw new IOException(file + " is not a world file.");
+				}
+				if (count > 0) {
+					piles = new BeeperPiles();
+				}
+				for (int i = 0; i < count; i++) {
+					long cell = raf.readLong();
+					int beepersThere = raf.readInt();
+					if (cell < 0 || cell >= (long) x * y || beepersThere < 2) {
+						throw new IOException(file + " is not a world file.");
+					}
+					piles.put(cell, beepersThere);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		MappedWorld world = new MappedWorld(file, file.canWrite() ? MapMode.READ_WRITE : MapMode.READ_ONLY, x, y, beepers);
+		world.piles = piles;
+		return world;
+	}
+	
+	/**
+	 * Create an empty world file of the given size and map it. On most file
+	 * systems no space is taken up until cells are written.
+	 */
+	static MappedWorld create(File file, int x, int y) throws IOException {
+		if (x < 0 || y < 0)
+            throw new IllegalArgumentException("Negative coordinate entered");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(HEADER + (long) x * y);
+			raf.writeInt(MAGIC);
+			raf.writeInt(x);
+			raf.writeInt(y);
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+		return new MappedWorld(file, MapMode.READ_WRITE, x, y, 0);
+	}
+	
+	@Override
+	byte cell(int x, int y) {
+		int edges = (y == ySize - 1 ? BLOCKED_NORTH : 0) | (y == 0 ? BLOCKED_SOUTH : 0)
+				| (x == xSize - 1 ? BLOCKED_EAST : 0) | (x == 0 ? BLOCKED_WEST : 0);
+		long i = HEADER + (long) y * xSize + x;
+		if (changes != null && !changes.isEmpty()) {
+			Byte value = changes.get(i);
+			if (value != null) {
+				return (byte) (value | edges);
+			}
+		}
+		return (byte) (segments[(int) (i >>> SEGMENT_SHIFT)].get((int) (i & SEGMENT_MASK)) | edges);
+	}
+	
+	@Override
+	void setCell(int x, int y, byte value) {
+		long i = HEADER + (long) y * xSize + x;
+		if (changes != null) {
+			changes.put(i, value);
+			return;
+		}
+		segments[(int) (i >>> SEGMENT_SHIFT)].put((int) (i & SEGMENT_MASK), value);
+		if (written != null) {
+			long page = i >>> PAGE_SHIFT;
+			if (page != lastPage) {
+				lastBits = written.get(page);
+				if (lastBits == null) {
+					lastBits = new long[1 << PAGE_SHIFT >>> 6];
+					written.put(page, lastBits);
+				}
+				lastPage = page;
+			}
+			lastBits[(int) (i & PAGE_MASK) >>> 6] |= 1L << i;
+		}
+	}
+	
+	@Override
+	void putContents(int x, int y, Contents newContent) {
+		super.putContents(x, y, newContent);
+		if (written == null && changes == null) {
+			segments[0].putInt(12, beeperCount);
+		}
+	}
+	
+	@Override
+	void putBeepers(int x, int y, int count) {
+		int old = beepersAt(x, y);
+		super.putBeepers(x, y, count);
+		if (written == null && changes == null) {
+			segments[0].putInt(12, beeperCount);
+			if (count > 1 || old > 1) {
+				writePiles();
+			}
+		}
+	}
+	
+	/**
+	 * Write the list of piles after the grid, replacing the one there.
+	 */
+	private void writePiles() {
+		long[] list = piles == null ? new long[0] : piles.toArray();
+		ByteBuffer area = ByteBuffer.allocate(4 + list.length / 2 * PILE);
+		area.putInt(list.length / 2);
+		for (int i = 0; i + 1 < list.length; i += 2) {
+			area.putLong(list[i]);
+			area.putInt((int) list[i + 1]);
+		}
+		long end = HEADER + (long) xSize * ySize;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(end + area.capacity());
+				raf.seek(end);
+				raf.write(area.array());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write to " + file + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Create a copy of this world, mapping the file privately if it can be.
+	 * @return a copy of this world
+	 */
+	@Override
+	public World cloneWorld() {
+		MappedWorld copy;
+		try {
+			copy = new MappedWorld(file, changes == null ? MapMode.PRIVATE : MapMode.READ_ONLY,
+					xSize, ySize, beeperCount);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not map " + file + ": " + e.getMessage());
+		}
+		long[] cells = changedCells();
+		for (long cell : cells) {
+			long i = cell >>> 8;
+			copy.setCell((int) (i % xSize), (int) (i / xSize), (byte) cell);
+		}
+		copy.piles = piles == null ? null : piles.copy();
+		return copy;
+	}
+	
+	/**
+	 * Mapping the file privately is already copy-on-write, so a snapshot is
+	 * the same as a clone.
+	 */
+	@Override
+	public World snapshot() {
+		return cloneWorld();
+	}
+	
+	/**
+	 * List the cells this world has changed without writing to the file. Each
+	 * entry is a row-major cell index shifted past the byte stored for it.
+	 */
+	private long[] changedCells() {
+		if (changes != null) {
+			long[] cells = new long[changes.size()];
+			int count = 0;
+			for (Map.Entry<Long, Byte> change : changes.entrySet()) {
+				cells[count++] = (change.getKey() - HEADER) << 8 | (change.getValue() & 0xFF);
+			}
+			return cells;
+		}
+		if (written == null) {
+			// the file has them all
+			return new long[0];
+		}
+		int count = 0;
+		for (long[] bits : written.values()) {
+			for (long word : bits) {
+				count += Long.bitCount(word);
+			}
+		}
+		long[] cells = new long[count];
+		count = 0;
+		for (Map.Entry<Long, long[]> page : written.entrySet()) {
+			long[] bits = page.getValue();
+			for (int w = 0; w < bits.length; w++) {
+				for (long word = bits[w]; word != 0; word &= word - 1) {
+					long at = page.getKey() << PAGE_SHIFT | w << 6 | Long.numberOfTrailingZeros(word);
+					cells[count++] = (at - HEADER) << 8
+							| (segments[(int) (at >>> SEGMENT_SHIFT)].get((int) (at & SEGMENT_MASK)) & 0xFF);
+				}
+			}
+		}
+		return cells;
+	}
+	
+	// the file is saved by name, with the cells a private mapping has changed
+	private Object writeReplace() throws ObjectStreamException {
+		SavedWorld saved = new SavedWorld();
+		saved.file = file;
+		saved.copy = written != null || changes != null;
+		saved.changes = changedCells();
+		saved.piles = piles == null ? null : piles.toArray();
+		saved.beeperCount = beeperCount;
+		return saved;
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException {
+		throw new InvalidObjectException("A mapped world is saved as a SavedWorld.");
+	}
+	
+	/**
+	 * The saved form of a MappedWorld.
+	 */
+	private static final class SavedWorld implements Serializable {
+	
+		private static final long serialVersionUID = 1L;
+		
+		File file;
+		// whether the world was a copy, which must not write to the file
+		boolean copy;
+		// each entry is a row-major cell index shifted past the byte stored for it
+		long[] changes;
+		// the piles of beepers, as listed by BeeperPiles.toArray()
+		long[] piles;
+		int beeperCount;
+		
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				World world = open(file);
+				if (copy) {
+					world = world.cloneWorld();
+					for (long entry : changes) {
+						long i = entry >>> 8;
+						world.setCell((int) (i % world.xSize), (int) (i / world.xSize), (byte) entry);
+					}
+				}
+				if (piles != null) {
+					world.restorePiles(piles);
+				}
+				world.beeperCount = beeperCount;
+				return world;
+			} catch (IOException e) {
+				throw new InvalidObjectException("Could not map " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+}
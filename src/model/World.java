@@ -4,7 +4,17 @@
 
 package model;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import model.Karel.Facing;
 
 /**
  * World is a class which contains the definitions of the environment that the robot Karel will exist in.
@@ -16,11 +26,71 @@ import java.io.Serializable;
  */
 public class World implements Serializable {
 
+	// sessions saved before the grid was packed must still load
+	private static final long serialVersionUID = 6392462532045020266L;
+	
+	// the grid is still saved as Contents[][], so saved sessions work both ways;
+	// a world too large for that is saved as a list of its non-empty cells
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("grid", Contents[][].class),
+		new ObjectStreamField("xSize", int.class),
+		new ObjectStreamField("ySize", int.class),
+		new ObjectStreamField("beeperCount", int.class),
+		new ObjectStreamField("sparse", long[].class),
+		new ObjectStreamField("piles", long[].class),
+		new ObjectStreamField("walls", long[].class)
+	};
+	private static final long MAX_SAVED_GRID = 1 << 24;
+	
 	public enum Contents { WALL, BEEPER, NONE, OUT_OF_BOUNDS }
 	
-	Contents[][] grid;
+	// the code stored in the low 2 bits of a cell for each Contents, by
+	// ordinal; an empty cell is 0
+	private static final byte[] CELLS = { 1, 2, 0, 3 };
+	// the Contents of each code stored
+	private static final Contents[] CONTENTS = { Contents.NONE, Contents.WALL, Contents.BEEPER, Contents.OUT_OF_BOUNDS };
+	static final int CONTENTS_MASK = 3;
+	
+	// the high 4 bits of a cell mark each side Karel cannot leave it by, in
+	// the order of Karel.Facing, so Karel's sensors are a single bit test: a
+	// side is blocked by the edge of the world, a wall between the cells, or a
+	// neighbour that is a wall. A wall cell cannot be stood on, so its own
+	// bits keep only the edges and the walls between it and its neighbours,
+	// which come back when it is cleared
+	static final int BLOCKED_NORTH = 1 << 4;
+	static final int BLOCKED_SOUTH = 1 << 5;
+	static final int BLOCKED_EAST = 1 << 6;
+	static final int BLOCKED_WEST = 1 << 7;
+	// the step to the neighbour on each side, in the order of Karel.Facing;
+	// the opposite of a side is the side ^ 1
+	private static final int[] SIDE_DX = { 0, 0, 1, -1 };
+	private static final int[] SIDE_DY = { 1, -1, 0, 0 };
+	
+	// the grid is split into square chunks of 64 by 64 cells
+	private static final int CHUNK_SHIFT = 6;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	// every chunk without contents; it is never written to
+	private static final byte[] EMPTY_CHUNK = new byte[1 << (2 * CHUNK_SHIFT)];
+	
+	// one byte per cell, chunk by chunk and row by row within each chunk
+	transient byte[][] chunks;
+	transient int xChunks;
+	// chunks this world may write to; any other chunk is copied first
+	transient BitSet owned;
+	// whether a snapshot may be reading chunks; if so, changes go to the overlay.
+	// Snapshots of one world may be taken on several threads at once, and each
+	// sets this in the world it was taken from
+	transient volatile boolean shared;
+	// cells changed since chunks was shared, in an open-addressed table of
+	// row-major cell index + 1 (0 is an empty slot) and contents
+	transient long[] overlayKeys;
+	transient byte[] overlayValues;
+	transient int overlaySize;
+	// cells holding more than one beeper; null if there are none
+	transient BeeperPiles piles;
 	int xSize;
 	int ySize;
+	// the number of beepers in the world, counting every beeper in a pile
 	int beeperCount;
 	
 	/**
@@ -29,7 +99,7 @@ public class World implements Serializable {
 	 * @param y The height of the World
 	 */
 	public World(int x, int y) {
-		
+	
 		if (x < 0 || y < 0)
             throw new IllegalArgumentException("Negative coordinate entered");
 
@@ -37,29 +107,134 @@ public class World implements Serializable {
 		ySize = y;
 		
 		beeperCount = 0;
-		grid = new Contents[x][y];
-		for (int i = 0; i < x; i++) {
-			for (int j = 0; j < y; j++) {
-				grid[i][j] = Contents.NONE;
+		xChunks = (x + CHUNK_MASK) >>> CHUNK_SHIFT;
+		long count = (long) xChunks * ((y + CHUNK_MASK) >>> CHUNK_SHIFT);
+		if (count > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("World is too large.");
+		chunks = new byte[(int) count][];
+		Arrays.fill(chunks, EMPTY_CHUNK);
+		owned = new BitSet();
+		
+		// chunks along the edges share one read-only chunk per edge or corner
+		int yChunks = chunks.length == 0 ? 0 : chunks.length / xChunks;
+		byte[][] borders = new byte[16][];
+		for (int cy = 0; cy < yChunks; cy++) {
+			for (int cx = 0; cx < xChunks; cx++) {
+				int edges = (cy == yChunks - 1 ? BLOCKED_NORTH : 0) | (cy == 0 ? BLOCKED_SOUTH : 0)
+						| (cx == xChunks - 1 ? BLOCKED_EAST : 0) | (cx == 0 ? BLOCKED_WEST : 0);
+				if (edges != 0) {
+					if (borders[edges >>> 4] == null) {
+						borders[edges >>> 4] = border(edges);
+					}
+					chunks[cy * xChunks + cx] = borders[edges >>> 4];
+				}
+				if (cy > 0 && cy < yChunks - 1 && cx == 0 && xChunks > 1) {
+					// skip the inside of the row
+					cx = xChunks - 2;
+				}
 			}
 		}
 	};
 	
+	/**
+	 * Create a chunk on the given edges of this world, with those edges
+	 * marked as blocked.
+	 */
+	private byte[] border(int edges) {
+		byte[] chunk = new byte[EMPTY_CHUNK.length];
+		int top = (ySize - 1) & CHUNK_MASK;
+		int right = (xSize - 1) & CHUNK_MASK;
+		for (int j = 0; j <= CHUNK_MASK; j++) {
+			for (int i = 0; i <= CHUNK_MASK; i++) {
+				int blocked = ((edges & BLOCKED_NORTH) != 0 && j == top ? BLOCKED_NORTH : 0)
+						| ((edges & BLOCKED_SOUTH) != 0 && j == 0 ? BLOCKED_SOUTH : 0)
+						| ((edges & BLOCKED_EAST) != 0 && i == right ? BLOCKED_EAST : 0)
+						| ((edges & BLOCKED_WEST) != 0 && i == 0 ? BLOCKED_WEST : 0);
+				chunk[j << CHUNK_SHIFT | i] = (byte) blocked;
+			}
+		}
+		return chunk;
+	}
+	
 	/**
 	 * Create a copy of this world.
 	 * @return a deep copy of this world
 	 */
 	public World cloneWorld() {
-		World clone = new World(xSize, ySize);
-		clone.beeperCount = this.beeperCount;
-		for(int i = 0; i < grid.length; i++) {
-			for(int j = 0; j < grid[0].length; j++) {
-				clone.grid[i][j] = this.grid[i][j];
+		World clone = new World(0, 0);
+		clone.xSize = xSize;
+		clone.ySize = ySize;
+		clone.beeperCount = beeperCount;
+		clone.xChunks = xChunks;
+		// neither world may write to the chunks they now share
+		clone.chunks = chunks.clone();
+		owned.clear();
+		clone.piles = piles == null ? null : piles.copy();
+		for (int slot = 0; overlaySize != 0 && slot < overlayKeys.length; slot++) {
+			if (overlayKeys[slot] != 0) {
+				long i = overlayKeys[slot] - 1;
+				clone.setCell((int) (i % xSize), (int) (i / xSize), overlayValues[slot]);
 			}
 		}
 		return clone;
 	}
 	
+	/**
+	 * Create a copy of this world that shares its grid with this one. Either
+	 * world may be changed without affecting the other; the changes are kept
+	 * on the side until there are too many of them, and only then is the grid
+	 * copied. This makes a snapshot cheap to take, however large the world.
+	 * Taking a snapshot leaves this world's contents as they were, but marks
+	 * its grid as shared, so its own later changes are kept on the side too.
+	 * Snapshots may be taken on several threads at once, as long as the world
+	 * is not being changed.
+	 * @return a copy of this world
+	 */
+	public World snapshot() {
+		World copy = new World(0, 0);
+		copy.xSize = xSize;
+		copy.ySize = ySize;
+		copy.beeperCount = beeperCount;
+		copy.xChunks = xChunks;
+		copy.chunks = chunks;
+		copy.shared = true;
+		if (!shared) {
+			shared = true;
+		}
+		copy.piles = piles == null ? null : piles.copy();
+		if (overlaySize > 0) {
+			copy.overlayKeys = overlayKeys.clone();
+			copy.overlayValues = overlayValues.clone();
+			copy.overlaySize = overlaySize;
+		}
+		return copy;
+	}
+	
+	/**
+	 * Open a world stored in a file, one byte per cell, without reading the
+	 * file into memory. If the file can be written to, changes to the world
+	 * are written to it; copies of the world never change the file.
+	 * @param file a world file created by map(File, int, int)
+	 * @return the world stored in the file
+	 * @throws IOException if the file cannot be mapped or is not a world file
+	 */
+	public static World map(File file) throws IOException {
+		return MappedWorld.open(file);
+	}
+	
+	/**
+	 * Create an empty world of size x by y stored in a file, replacing
+	 * anything already in the file, and open it as map(File) would.
+	 * @param file the file to store the world in
+	 * @param x The width of the World
+	 * @param y The height of the World
+	 * @return the new world
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public static World map(File file, int x, int y) throws IOException {
+		return MappedWorld.create(file, x, y);
+	}
+	
 	public int getXSize() {
 		return xSize;
 	}
@@ -68,6 +243,15 @@ public class World implements Serializable {
 		return ySize;
 	}
 	
+	/**
+	 * Returns the number of beepers in the world, counting every beeper in
+	 * a pile
+	 * @return the number of beepers in the world
+	 */
+	public int getBeeperCount() {
+		return beeperCount;
+	}
+	
 	/**
 	 * Returns whatever content type is present at grid coordinate x and y
 	 * @param x The x coordinate
@@ -75,14 +259,14 @@ public class World implements Serializable {
 	 * @return whatever content type (wall, beeper, or none) is present at grid (x, y)
 	 */
 	public Contents getContents(int x, int y) {
-		
+	
 		if (x < 0 || y < 0)
             throw new IllegalArgumentException("Negative coordinate entered");
-		
+
 		if (x >= xSize || y >= ySize) {
 			return Contents.OUT_OF_BOUNDS;
 		}
-		return grid[x][y];
+		return CONTENTS[cell(x, y) & CONTENTS_MASK];
 	}
 	
 	/**
@@ -92,24 +276,487 @@ public class World implements Serializable {
 	 * @param newContent The type of content to be added, either wall or beeper
 	 */
 	public void setContents(int x, int y, Contents newContent) {
+	
+		if (x < 0 || y < 0)
+            throw new IllegalArgumentException("Negative coordinate entered");
+		if (x >= xSize || y >= ySize) {
+			throw new IllegalArgumentException("Out of bounds.");
+		}
+		if (newContent == null) {
+			throw new IllegalArgumentException("Contents cannot be null.");
+		}
+		
+		putContents(x, y, newContent);
+	
+	}
+	
+	/**
+	 * Returns the number of beepers at grid coordinate x and y
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @return the number of beepers piled at grid (x, y), or 0 if it holds none
+	 */
+	public int getBeepers(int x, int y) {
+		
+		if (x < 0 || y < 0)
+            throw new IllegalArgumentException("Negative coordinate entered");
+		if (x >= xSize || y >= ySize) {
+			return 0;
+		}
+		return beepersAt(x, y);
+	}
+	
+	/**
+	 * Puts a pile of beepers at the grid coordinates specified, replacing
+	 * whatever was there
+	 * @param x The x coordinate of the pile
+	 * @param y The y coordinate of the pile
+	 * @param count The number of beepers in the pile; 0 empties the cell
+	 */
+	public void setBeepers(int x, int y, int count) {
 		
 		if (x < 0 || y < 0)
             throw new IllegalArgumentException("Negative coordinate entered");
 		if (x >= xSize || y >= ySize) {
 			throw new IllegalArgumentException("Out of bounds.");
 		}
+		if (count < 0) {
+			throw new IllegalArgumentException("Cannot have a negative number of beepers.");
+		}
 		
-		if (grid[x][y] == Contents.BEEPER) {
-			// overwriting a beeper
-			beeperCount--;
+		putBeepers(x, y, count);
+	}
+	
+	/**
+	 * Return the number of beepers in a cell without checking its coordinates.
+	 */
+	int beepersAt(int x, int y) {
+		if ((cell(x, y) & CONTENTS_MASK) != CELLS[Contents.BEEPER.ordinal()]) {
+			return 0;
+		}
+		return piles == null ? 1 : piles.get((long) y * xSize + x, 1);
+	}
+	
+	/**
+	 * Replace the contents of a cell with a pile of beepers, without checking
+	 * its coordinates or the count.
+	 */
+	void putBeepers(int x, int y, int count) {
+		int old = beepersAt(x, y);
+		beeperCount += count - old;
+		long i = (long) y * xSize + x;
+		if (count > 1) {
+			if (piles == null) {
+				piles = new BeeperPiles();
+			}
+			piles.put(i, count);
+		} else if (old > 1) {
+			piles.remove(i);
+		}
+		setCode(x, y, CELLS[(count > 0 ? Contents.BEEPER : Contents.NONE).ordinal()]);
+	}
+	
+	/**
+	 * Return the contents of a cell without checking its coordinates, for
+	 * Karel's own position, which is always in bounds. The edges of the world
+	 * are marked in every cell along them, so Karel never needs to look past
+	 * one.
+	 */
+	Contents contentsAt(int x, int y) {
+		return CONTENTS[cell(x, y) & CONTENTS_MASK];
+	}
+	
+	/**
+	 * Set the contents of a cell without checking its coordinates or the new
+	 * contents.
+	 */
+	void putContents(int x, int y, Contents newContent) {
+		if (CONTENTS[cell(x, y) & CONTENTS_MASK] == Contents.BEEPER) {
+			// overwriting a beeper, or a whole pile
+			putBeepers(x, y, 0);
 		}
 		if (newContent == Contents.BEEPER) {
 			// adding a beeper
 			beeperCount++;
 		}
 		
-		grid[x][y] = newContent;
+		setCode(x, y, CELLS[newContent.ordinal()]);
+	}
+	
+	/**
+	 * Returns whether there is a wall on one side of grid coordinate x and y,
+	 * between it and its neighbour. The edges of the world are always walls.
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @param side The side of the cell
+	 * @return whether Karel is kept from crossing that side of grid (x, y)
+	 */
+	public boolean hasWall(int x, int y, Facing side) {
+		
+		if (x < 0 || y < 0)
+            throw new IllegalArgumentException("Negative coordinate entered");
+		if (x >= xSize || y >= ySize) {
+			throw new IllegalArgumentException("Out of bounds.");
+		}
+		if (side == null) {
+			throw new IllegalArgumentException("Side cannot be null.");
+		}
+		return wallAt(x, y, side.ordinal());
+	}
+	
+	/**
+	 * Puts up or takes down a wall on one side of grid coordinate x and y,
+	 * between it and its neighbour, without changing either cell's contents
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @param side The side of the cell
+	 * @param wall Whether there should be a wall on that side
+	 */
+	public void setWall(int x, int y, Facing side, boolean wall) {
+		
+		if (x < 0 || y < 0)
+            throw new IllegalArgumentException("Negative coordinate entered");
+		if (x >= xSize || y >= ySize) {
+			throw new IllegalArgumentException("Out of bounds.");
+		}
+		if (side == null) {
+			throw new IllegalArgumentException("Side cannot be null.");
+		}
+		int nx = x + SIDE_DX[side.ordinal()];
+		int ny = y + SIDE_DY[side.ordinal()];
+		if (nx < 0 || ny < 0 || nx >= xSize || ny >= ySize) {
+			if (!wall) {
+				throw new IllegalArgumentException("Cannot take down the edge of the world.");
+			}
+			return;
+		}
 		
+		putWall(x, y, side.ordinal(), wall);
+	}
+	
+	/**
+	 * Return whether there is a wall on a side of a cell, by Facing ordinal,
+	 * without checking its coordinates.
+	 */
+	boolean wallAt(int x, int y, int side) {
+		int nx = x + SIDE_DX[side];
+		int ny = y + SIDE_DY[side];
+		if (nx < 0 || ny < 0 || nx >= xSize || ny >= ySize) {
+			return true;
+		}
+		int wall = CELLS[Contents.WALL.ordinal()];
+		int here = cell(x, y);
+		int there = cell(nx, ny);
+		if ((here & CONTENTS_MASK) != wall && (there & CONTENTS_MASK) == wall) {
+			// this side is blocked anyway, and only the wall knows
+			return (there & BLOCKED_NORTH << (side ^ 1)) != 0;
+		}
+		return (here & BLOCKED_NORTH << side) != 0;
+	}
+	
+	/**
+	 * Put up or take down a wall on a side of a cell, by Facing ordinal,
+	 * without checking its coordinates. Its neighbour on that side must be in
+	 * bounds.
+	 */
+	void putWall(int x, int y, int side, boolean blocked) {
+		int nx = x + SIDE_DX[side];
+		int ny = y + SIDE_DY[side];
+		int wall = CELLS[Contents.WALL.ordinal()];
+		int here = cell(x, y);
+		int there = cell(nx, ny);
+		boolean hereWall = (here & CONTENTS_MASK) == wall;
+		boolean thereWall = (there & CONTENTS_MASK) == wall;
+		int bit = BLOCKED_NORTH << side;
+		int opposite = BLOCKED_NORTH << (side ^ 1);
+		setCell(x, y, (byte) (blocked || thereWall && !hereWall ? here | bit : here & ~bit));
+		setCell(nx, ny, (byte) (blocked || hereWall && !thereWall ? there | opposite : there & ~opposite));
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Set the contents code of a cell, and mark whether it is blocked in
+	 * each of its neighbours.
+	 */
+	void setCode(int x, int y, int code) {
+		int old = cell(x, y);
+		int value = old & ~CONTENTS_MASK | code;
+		int wall = CELLS[Contents.WALL.ordinal()];
+		boolean isWall = code == wall;
+		if (((old & CONTENTS_MASK) == wall) != isWall) {
+			for (int side = 0; side < SIDE_DX.length; side++) {
+				int nx = x + SIDE_DX[side];
+				int ny = y + SIDE_DY[side];
+				if (nx < 0 || ny < 0 || nx >= xSize || ny >= ySize) {
+					continue;
+				}
+				int bit = BLOCKED_NORTH << side;
+				int opposite = BLOCKED_NORTH << (side ^ 1);
+				int there = cell(nx, ny);
+				boolean thereWall = (there & CONTENTS_MASK) == wall;
+				// whether there is a wall between the two cells
+				boolean between = thereWall && isWall ? (there & opposite) != 0 : (old & bit) != 0;
+				value = between || thereWall && !isWall ? value | bit : value & ~bit;
+				if (!thereWall) {
+					setCell(nx, ny, (byte) (between || isWall ? there | opposite : there & ~opposite));
+				}
+			}
+		}
+		setCell(x, y, (byte) value);
+	}
+	
+	byte cell(int x, int y) {
+		if (overlaySize != 0) {
+			int slot = slot((long) y * xSize + x + 1);
+			if (overlayKeys[slot] != 0) {
+				return overlayValues[slot];
+			}
+		}
+		return chunks[(y >>> CHUNK_SHIFT) * xChunks + (x >>> CHUNK_SHIFT)][(y & CHUNK_MASK) << CHUNK_SHIFT | (x & CHUNK_MASK)];
+	}
+	
+	void setCell(int x, int y, byte value) {
+		if (shared && overlaySize >= 256 && overlaySize >= (chunks.length >> 4)) {
+			// enough of the grid has changed to be worth a chunk table of its own
+			long[] keys = overlayKeys;
+			byte[] values = overlayValues;
+			chunks = chunks.clone();
+			owned = new BitSet();
+			shared = false;
+			overlayKeys = null;
+			overlayValues = null;
+			overlaySize = 0;
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != 0) {
+					long i = keys[slot] - 1;
+					setCell((int) (i % xSize), (int) (i / xSize), values[slot]);
+				}
+			}
+		}
+		if (!shared) {
+			int chunk = (y >>> CHUNK_SHIFT) * xChunks + (x >>> CHUNK_SHIFT);
+			if (!owned.get(chunk)) {
+				if (value == 0 && chunks[chunk] == EMPTY_CHUNK) {
+					return;
+				}
+				chunks[chunk] = chunks[chunk].clone();
+				owned.set(chunk);
+			}
+			chunks[chunk][(y & CHUNK_MASK) << CHUNK_SHIFT | (x & CHUNK_MASK)] = value;
+			return;
+		}
+		if (overlayKeys == null || 2 * (overlaySize + 1) > overlayKeys.length) {
+			growOverlay();
+		}
+		long key = (long) y * xSize + x + 1;
+		int slot = slot(key);
+		if (overlayKeys[slot] == 0) {
+			overlayKeys[slot] = key;
+			overlaySize++;
+		}
+		overlayValues[slot] = value;
+	}
+	
+	/**
+	 * Find the slot of the overlay holding a key, or the empty slot where it
+	 * would go.
+	 */
+	private int slot(long key) {
+		int mask = overlayKeys.length - 1;
+		int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+		while (overlayKeys[slot] != 0 && overlayKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void growOverlay() {
+		long[] keys = overlayKeys;
+		byte[] values = overlayValues;
+		overlayKeys = new long[keys == null ? 16 : keys.length * 2];
+		overlayValues = new byte[overlayKeys.length];
+		if (keys != null) {
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != 0) {
+					int to = slot(keys[slot]);
+					overlayKeys[to] = keys[slot];
+					overlayValues[to] = values[slot];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Put back piles listed by BeeperPiles.toArray() in a world with a
+	 * beeper in each of their cells.
+	 */
+	void restorePiles(long[] saved) {
+		for (int i = 0; i + 1 < saved.length; i += 2) {
+			putBeepers((int) (saved[i] % xSize), (int) (saved[i] / xSize), (int) saved[i + 1]);
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		if ((long) xSize * ySize <= MAX_SAVED_GRID) {
+			Contents[][] grid = new Contents[xSize][ySize];
+			for (int i = 0; i < xSize; i++) {
+				for (int j = 0; j < ySize; j++) {
+					grid[i][j] = CONTENTS[cell(i, j) & CONTENTS_MASK];
+				}
+			}
+			fields.put("grid", grid);
+		} else {
+			// each entry is a row-major cell index shifted past its 2 bit contents
+			long[] sparse = new long[16];
+			int count = 0;
+			for (int chunk = 0; chunk < chunks.length; chunk++) {
+				if (chunks[chunk] == EMPTY_CHUNK) {
+					continue;
+				}
+				long x0 = (chunk % xChunks) << CHUNK_SHIFT;
+				long y0 = (chunk / xChunks) << CHUNK_SHIFT;
+				for (int i = 0; i < chunks[chunk].length; i++) {
+					int code = chunks[chunk][i] & CONTENTS_MASK;
+					if (code != 0) {
+						if (count == sparse.length) {
+							sparse = Arrays.copyOf(sparse, count * 2);
+						}
+						long cell = (y0 + (i >>> CHUNK_SHIFT)) * xSize + x0 + (i & CHUNK_MASK);
+						sparse[count++] = cell << 2 | code;
+					}
+				}
+			}
+			// changes on the side come last, so they replace the cells under them
+			for (int slot = 0; overlaySize != 0 && slot < overlayKeys.length; slot++) {
+				if (overlayKeys[slot] != 0) {
+					if (count == sparse.length) {
+						sparse = Arrays.copyOf(sparse, count * 2);
+					}
+					sparse[count++] = (overlayKeys[slot] - 1) << 2 | (overlayValues[slot] & CONTENTS_MASK);
+				}
+			}
+			fields.put("sparse", Arrays.copyOf(sparse, count));
+		}
+		if (piles != null && piles.size() > 0) {
+			fields.put("piles", piles.toArray());
+		}
+		long[] walls = walls();
+		if (walls.length > 0) {
+			fields.put("walls", walls);
+		}
+		fields.put("xSize", xSize);
+		fields.put("ySize", ySize);
+		fields.put("beeperCount", beeperCount);
+		out.writeFields();
+	}
+	
+	/**
+	 * List the walls between cells, each as a row-major cell index shifted
+	 * past a bit that is 0 for the wall on its north side and 1 for the wall
+	 * on its east side. A wall on a cell's south or west side is listed with
+	 * its neighbour's, and the edges of the world are not listed.
+	 */
+	private long[] walls() {
+		long[] walls = new long[16];
+		int count = 0;
+		int blocked = BLOCKED_NORTH | BLOCKED_EAST;
+		// only cells written to can have walls beside them; a cell changed on
+		// the side may be met twice, which is harmless
+		int candidates = chunks.length + (overlaySize == 0 ? 0 : overlayKeys.length);
+		for (int at = 0; at < candidates; at++) {
+			long x0, y0;
+			int width, height;
+			if (at < chunks.length) {
+				if (chunks[at] == EMPTY_CHUNK) {
+					continue;
+				}
+				x0 = (long) (at % xChunks) << CHUNK_SHIFT;
+				y0 = (long) (at / xChunks) << CHUNK_SHIFT;
+				width = (int) Math.min(1 << CHUNK_SHIFT, xSize - x0);
+				height = (int) Math.min(1 << CHUNK_SHIFT, ySize - y0);
+			} else {
+				long key = overlayKeys[at - chunks.length];
+				if (key == 0) {
+					continue;
+				}
+				x0 = (key - 1) % xSize;
+				y0 = (key - 1) / xSize;
+				width = 1;
+				height = 1;
+			}
+			for (int j = 0; j < height; j++) {
+				for (int i = 0; i < width; i++) {
+					int x = (int) x0 + i;
+					int y = (int) y0 + j;
+					if ((cell(x, y) & blocked) == 0) {
+						continue;
+					}
+					for (int side = 0; side < 2; side++) {
+						int facing = side == 0 ? Facing.NORTH.ordinal() : Facing.EAST.ordinal();
+						if (x + SIDE_DX[facing] < xSize && y + SIDE_DY[facing] < ySize && wallAt(x, y, facing)) {
+							if (count == walls.length) {
+								walls = Arrays.copyOf(walls, count * 2);
+							}
+							walls[count++] = ((long) y * xSize + x) << 1 | side;
+						}
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(walls, count);
+	}
+	
+	/**
+	 * Put back walls listed by walls().
+	 */
+	void restoreWalls(long[] saved) {
+		for (long entry : saved) {
+			long i = entry >>> 1;
+			int side = (entry & 1) == 0 ? Facing.NORTH.ordinal() : Facing.EAST.ordinal();
+			putWall((int) (i % xSize), (int) (i / xSize), side, true);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		int x = fields.get("xSize", 0);
+		int y = fields.get("ySize", 0);
+		Contents[][] grid = (Contents[][]) fields.get("grid", null);
+		long[] sparse = (long[]) fields.get("sparse", null);
+		long[] saved = (long[]) fields.get("piles", null);
+		long[] walls = (long[]) fields.get("walls", null);
+		try {
+			World empty = new World(x, y);
+			xSize = x;
+			ySize = y;
+			xChunks = empty.xChunks;
+			chunks = empty.chunks;
+			owned = empty.owned;
+		} catch (IllegalArgumentException e) {
+			throw new InvalidObjectException(e.getMessage());
+		}
+		if (grid != null) {
+			for (int i = 0; i < xSize; i++) {
+				for (int j = 0; j < ySize; j++) {
+					Contents c = grid[i][j];
+					if (c != null && c != Contents.NONE) {
+						setCode(i, j, CELLS[c.ordinal()]);
+					}
+				}
+			}
+		} else if (sparse != null) {
+			for (long entry : sparse) {
+				long i = entry >>> 2;
+				setCode((int) (i % xSize), (int) (i / xSize), (int) (entry & CONTENTS_MASK));
+			}
+		}
+		if (saved != null) {
+			restorePiles(saved);
+		}
+		if (walls != null) {
+			restoreWalls(walls);
+		}
+		beeperCount = fields.get("beeperCount", 0);
+	}
+
+}
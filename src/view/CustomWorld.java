@@ -18,6 +18,7 @@ import javax.swing.JRadioButton;
 import javax.swing.JTextField;
 
 import control.Controller;
+import model.Karel.Facing;
 import model.World;
 import model.World.Contents;
 
@@ -31,7 +32,9 @@ public class CustomWorld extends JDialog{
 	JTextField xCoorTF = new JTextField(3);
 	JTextField yCoorTF = new JTextField(3);
 
-	String[] elementArr = {"Beeper", "Wall", "None"};
+	String[] elementArr = {"Beeper", "Wall", "None",
+			"Wall North", "Wall East", "Wall South", "Wall West",
+			"No Wall North", "No Wall East", "No Wall South", "No Wall West"};
 	JComboBox elementBox = new JComboBox(elementArr);
 
 	JButton addBut = new JButton("Add element");
@@ -82,6 +85,15 @@ public class CustomWorld extends JDialog{
 						w.setContents(x, y, Contents.BEEPER);
 					}else if(el.equals("Wall")){
 						w.setContents(x, y, Contents.WALL);
+					}else if(el.startsWith("Wall ")){
+						// a wall between this cell and its neighbour
+						w.setWall(x, y, Facing.valueOf(el.substring(5).toUpperCase()), true);
+					}else if(el.startsWith("No Wall ")){
+						try {
+							w.setWall(x, y, Facing.valueOf(el.substring(8).toUpperCase()), false);
+						} catch (IllegalArgumentException ex) {
+							JOptionPane.showMessageDialog(null, ex.getMessage());
+						}
 					}else{
 						w.setContents(x, y, Contents.NONE);
 					}
@@ -7,16 +7,19 @@ package view;
 import java.awt.Color;
 import java.util.ArrayList;
 
+import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.border.Border;
 
 import model.BasicCode;
 import model.Code;
 import model.Code.Action;
 import model.Code.Proposition;
 import model.Karel;
+import model.Karel.Facing;
 import model.World;
 import model.World.Contents;
 import control.Controller;
@@ -29,6 +32,9 @@ public class Util {
 	
 	static int EditIndex;
 	
+	// the key under which each label keeps the border WorldGrid gave it
+	private static final String GRID_BORDER = "gridBorder";
+	
 	public static void initializeWorlds(int worldCount){
 		worlds = new ArrayList<World>();
 		
@@ -177,6 +183,10 @@ public class Util {
 				switch(contents) {
 				case BEEPER:
 				     System.out.println("beeper at xy: " + j + " and " + i);
+				     if(world.getBeepers(j, world.getYSize() - 1 - i) > 1){
+				    	 // show the size of a pile beside its beeper
+				    	 sb.append(world.getBeepers(j, world.getYSize() - 1 - i));
+				     }
 				     if(karel.getX() == j && karel.getY() == world.getYSize() - 1 - i){
 				    	 if(facingWhere(karel)==0)
 				    	 worldLabels[i][j].setIcon(new ImageIcon("images/beeperRight.png"));
@@ -238,11 +248,34 @@ public class Util {
 					}
 				}
 				label.setText(sb.toString());
+				drawWalls(label, world, j, world.getYSize() - 1 - i);
 				// worldLabels[i][j].setText(String.valueOf(j) + String.valueOf(world.getYSize() - 1 - i));
 			}
 		}
 	}
 	
+	/**
+	 * Draw the walls between a cell and its neighbours as thick lines inside
+	 * its label, over the lines of the grid.
+	 */
+	private static void drawWalls(JLabel label, World world, int x, int y) {
+		Border grid = (Border) label.getClientProperty(GRID_BORDER);
+		if (grid == null) {
+			grid = label.getBorder();
+			label.putClientProperty(GRID_BORDER, grid);
+		}
+		int top = y < world.getYSize() - 1 && world.hasWall(x, y, Facing.NORTH) ? 3 : 0;
+		int left = x > 0 && world.hasWall(x, y, Facing.WEST) ? 3 : 0;
+		int bottom = y > 0 && world.hasWall(x, y, Facing.SOUTH) ? 3 : 0;
+		int right = x < world.getXSize() - 1 && world.hasWall(x, y, Facing.EAST) ? 3 : 0;
+		if (top + left + bottom + right == 0) {
+			label.setBorder(grid);
+		} else {
+			label.setBorder(BorderFactory.createCompoundBorder(grid,
+					BorderFactory.createMatteBorder(top, left, bottom, right, Color.DARK_GRAY)));
+		}
+	}
+	
 	public static Code matchStringToCode(String s){
 
 		switch(s){
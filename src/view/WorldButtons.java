@@ -21,6 +21,8 @@ public class WorldButtons extends JPanel{
 			if(source == play){
 				/**begin program execution*/	
 				WorldConsole.reset();
+				// compile a few lines at a time, so the first step is ready at once
+				Util.cntrl.setLazyCompile(true);
 				Util.cntrl.compile();
 				Util.drawWorld(Util.cntrl.getKarel(), Util.cntrl.getWorld());
 				PseudocodeList.getTheJList().setSelectedIndex(-1);
@@ -44,11 +46,11 @@ public class WorldButtons extends JPanel{
 				//MainWindow.enableAll();
 			}else if(source == step_through){
 				MainWindow.disableAll();
-				while(Util.cntrl.execute()){
-					WorldConsole.edit(Util.cntrl.getExecutionMessage());
-					Util.drawWorld(Util.cntrl.getKarel(), Util.cntrl.getWorld());
-				}
+				// run the whole program as one batch, then report and redraw once
+				Util.cntrl.runToCompletion();
+				WorldConsole.edit("Karel took " + Util.cntrl.getStepCount() + " steps");
 				WorldConsole.edit(Util.cntrl.getExecutionMessage());
+				Util.drawWorld(Util.cntrl.getKarel(), Util.cntrl.getWorld());
 				disable_buttons();
 				MainWindow.enableAll();
 			}else{